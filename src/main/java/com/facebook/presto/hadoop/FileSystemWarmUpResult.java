@@ -0,0 +1,82 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.presto.hadoop;
+
+import java.net.URI;
+import java.util.Optional;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Outcome of warming up the cached file system for one URI and user.
+ */
+public final class FileSystemWarmUpResult
+{
+    private final URI uri;
+    private final String user;
+    private final long durationNanos;
+    private final Optional<Throwable> failure;
+
+    public FileSystemWarmUpResult(URI uri, String user, long durationNanos, Optional<Throwable> failure)
+    {
+        this.uri = requireNonNull(uri, "uri is null");
+        this.user = requireNonNull(user, "user is null");
+        this.durationNanos = durationNanos;
+        this.failure = requireNonNull(failure, "failure is null");
+    }
+
+    public URI getUri()
+    {
+        return uri;
+    }
+
+    public String getUser()
+    {
+        return user;
+    }
+
+    public long getDurationMillis()
+    {
+        return NANOSECONDS.toMillis(durationNanos);
+    }
+
+    public long getDurationNanos()
+    {
+        return durationNanos;
+    }
+
+    public boolean isSuccessful()
+    {
+        return !failure.isPresent();
+    }
+
+    public Optional<Throwable> getFailure()
+    {
+        return failure;
+    }
+
+    @Override
+    public String toString()
+    {
+        return toStringHelper(this)
+                .add("uri", uri)
+                .add("user", user)
+                .add("durationMillis", getDurationMillis())
+                .add("failure", failure.orElse(null))
+                .omitNullValues()
+                .toString();
+    }
+}
@@ -13,11 +13,36 @@
  */
 package com.facebook.presto.hadoop;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.PrestoFileSystemCache;
+import org.apache.hadoop.fs.PrestoFileSystemCacheStats;
+import org.apache.hadoop.security.UserGroupInformation;
+
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.Executors.newFixedThreadPool;
 
 public final class HadoopFileSystemCache
 {
+    private static final Log log = LogFactory.getLog(HadoopFileSystemCache.class);
+
     private static PrestoFileSystemCache cache;
 
     private HadoopFileSystemCache() {}
@@ -30,4 +55,84 @@ public final class HadoopFileSystemCache
             cache = newCache;
         }
     }
+
+    public static synchronized PrestoFileSystemCacheStats getStats()
+    {
+        checkState(cache != null, "HadoopFileSystemCache is not initialized");
+        return cache.getStats();
+    }
+
+    /**
+     * Eagerly creates and caches the file system of every URI for every user, so that
+     * the first queries do not pay for file system initialization. Failures are reported
+     * in the results, and do not prevent warming up the remaining file systems.
+     *
+     * @param conf the configuration used to create the file systems
+     * @param uris the file systems to create
+     * @param users the users to create the file systems for
+     * @param parallelism the maximum number of file systems created concurrently
+     * @return the outcome for each user and URI pair, ordered by user and then by URI
+     * @throws InterruptedIOException if interrupted while waiting for the file systems
+     */
+    public static List<FileSystemWarmUpResult> warmUp(Configuration conf, Collection<URI> uris, Collection<UserGroupInformation> users, int parallelism)
+            throws InterruptedIOException
+    {
+        requireNonNull(conf, "conf is null");
+        requireNonNull(uris, "uris is null");
+        requireNonNull(users, "users is null");
+        checkArgument(parallelism > 0, "parallelism must be positive");
+        synchronized (HadoopFileSystemCache.class) {
+            checkState(cache != null, "HadoopFileSystemCache is not initialized");
+        }
+
+        ExecutorService executor = newFixedThreadPool(parallelism, new ThreadFactoryBuilder()
+                .setNameFormat("hadoop-file-system-warm-up-%s")
+                .setDaemon(true)
+                .build());
+        try {
+            List<Future<FileSystemWarmUpResult>> futures = new ArrayList<>();
+            for (UserGroupInformation user : users) {
+                for (URI uri : uris) {
+                    futures.add(executor.submit(() -> warmUp(conf, uri, user)));
+                }
+            }
+
+            ImmutableList.Builder<FileSystemWarmUpResult> results = ImmutableList.builder();
+            for (Future<FileSystemWarmUpResult> future : futures) {
+                results.add(future.get());
+            }
+            return results.build();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while warming up file systems");
+        }
+        catch (ExecutionException e) {
+            // warmUp of a single file system does not throw
+            throw new IllegalStateException(e.getCause());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static FileSystemWarmUpResult warmUp(Configuration conf, URI uri, UserGroupInformation user)
+    {
+        long start = System.nanoTime();
+        Optional<Throwable> failure = Optional.empty();
+        try {
+            user.doAs((PrivilegedExceptionAction<FileSystem>) () -> FileSystem.get(uri, conf));
+        }
+        catch (Throwable e) {
+            failure = Optional.of(e);
+        }
+        FileSystemWarmUpResult result = new FileSystemWarmUpResult(uri, user.getUserName(), System.nanoTime() - start, failure);
+        if (failure.isPresent()) {
+            log.warn("Failed to warm up file system " + uri + " for user " + user.getUserName(), failure.get());
+        }
+        else {
+            log.info("Warmed up file system " + uri + " for user " + user.getUserName() + " in " + result.getDurationMillis() + "ms");
+        }
+        return result;
+    }
 }
@@ -0,0 +1,202 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Stream that reads a remote file through a {@link LocalBlockCache}. Both sequential
+ * and positioned reads are served from the cached blocks, and missing blocks are read
+ * in full from the remote stream and added to the cache.
+ */
+class CachingInputStream
+        extends FSInputStream
+{
+    private final FSDataInputStream in;
+    private final LocalBlockCache cache;
+    private final String path;
+    private final long length;
+    private final long modificationTime;
+    private final String etag;
+    private final int blockSize;
+
+    private long position;
+    private long currentBlockIndex = -1;
+    private ByteBuffer currentBlock;
+    private volatile boolean closed;
+
+    public CachingInputStream(FSDataInputStream in, LocalBlockCache cache, FileStatus status)
+    {
+        this.in = requireNonNull(in, "in is null");
+        this.cache = requireNonNull(cache, "cache is null");
+        requireNonNull(status, "status is null");
+        this.path = status.getPath().toString();
+        this.length = status.getLen();
+        this.modificationTime = status.getModificationTime();
+        this.etag = status instanceof EtagSource ? ((EtagSource) status).getEtag() : null;
+        this.blockSize = cache.getBlockSize();
+    }
+
+    @Override
+    public synchronized int read()
+            throws IOException
+    {
+        checkOpen();
+        if (position >= length) {
+            return -1;
+        }
+        ByteBuffer block = getBlock(position / blockSize);
+        int value = block.get((int) (position % blockSize)) & 0xFF;
+        position++;
+        return value;
+    }
+
+    @Override
+    public synchronized int read(byte[] buffer, int offset, int length)
+            throws IOException
+    {
+        checkOpen();
+        int read = read(position, buffer, offset, length, true);
+        if (read > 0) {
+            position += read;
+        }
+        return read;
+    }
+
+    /**
+     * Positioned reads do not lock the stream, so that concurrent reads fetch
+     * missing blocks in parallel, and do not change the current block.
+     */
+    @Override
+    public int read(long position, byte[] buffer, int offset, int length)
+            throws IOException
+    {
+        checkOpen();
+        return read(position, buffer, offset, length, false);
+    }
+
+    @Override
+    public synchronized void seek(long targetPosition)
+            throws IOException
+    {
+        checkOpen();
+        if (targetPosition < 0) {
+            throw new EOFException("Cannot seek to negative position " + targetPosition);
+        }
+        if (targetPosition > length) {
+            throw new EOFException("Cannot seek after EOF " + targetPosition);
+        }
+        position = targetPosition;
+    }
+
+    @Override
+    public synchronized long getPos()
+    {
+        return position;
+    }
+
+    @Override
+    public boolean seekToNewSource(long targetPosition)
+    {
+        return false;
+    }
+
+    @Override
+    public synchronized int available()
+            throws IOException
+    {
+        checkOpen();
+        if (currentBlock == null || position / blockSize != currentBlockIndex) {
+            return 0;
+        }
+        return (int) Math.min(currentBlock.limit() - position % blockSize, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public synchronized void close()
+            throws IOException
+    {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        currentBlock = null;
+        in.close();
+    }
+
+    private int read(long position, byte[] buffer, int offset, int length, boolean sequential)
+            throws IOException
+    {
+        if (length == 0) {
+            return 0;
+        }
+        if (position >= this.length) {
+            return -1;
+        }
+        int total = 0;
+        while (total < length && position < this.length) {
+            long blockIndex = position / blockSize;
+            ByteBuffer block = (sequential ? getBlock(blockIndex) : loadBlock(blockIndex)).duplicate();
+            block.position((int) (position % blockSize));
+            int read = Math.min(length - total, block.remaining());
+            block.get(buffer, offset + total, read);
+            total += read;
+            position += read;
+        }
+        return total;
+    }
+
+    /**
+     * Returns the block at the given index, and makes it the current block of the sequential reads.
+     */
+    private ByteBuffer getBlock(long blockIndex)
+            throws IOException
+    {
+        if (blockIndex == currentBlockIndex) {
+            return currentBlock;
+        }
+        ByteBuffer block = loadBlock(blockIndex);
+        currentBlockIndex = blockIndex;
+        currentBlock = block;
+        return block;
+    }
+
+    private ByteBuffer loadBlock(long blockIndex)
+            throws IOException
+    {
+        String key = LocalBlockCache.blockKey(path, modificationTime, etag, blockIndex);
+        ByteBuffer block = cache.get(key);
+        if (block == null) {
+            long blockStart = blockIndex * blockSize;
+            int blockLength = (int) Math.min(blockSize, length - blockStart);
+            byte[] data = new byte[blockLength];
+            in.readFully(blockStart, data, 0, blockLength);
+            cache.put(key, data, blockLength);
+            block = ByteBuffer.wrap(data);
+        }
+        return block;
+    }
+
+    private void checkOpen()
+            throws IOException
+    {
+        if (closed) {
+            throw new IOException("Stream is closed");
+        }
+    }
+}
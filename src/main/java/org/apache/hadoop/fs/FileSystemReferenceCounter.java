@@ -0,0 +1,167 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Tracks the references to an underlying file system. The owner of the file system
+ * holds the initial reference, which is released when the cache retires the file system,
+ * or at the latest when the wrapper file system becomes unreachable, and every open
+ * stream holds one more until it is closed or collected. The underlying file system is
+ * closed as soon as the last reference is released.
+ * <p>
+ * Note: this class must not reference the wrapper file system, because it is used as
+ * the cleanup action of the wrapper in {@link FinalizerService}.
+ */
+final class FileSystemReferenceCounter
+{
+    private static final Log log = LogFactory.getLog(FileSystemReferenceCounter.class);
+
+    private final FileSystem fileSystem;
+    private final AtomicInteger references = new AtomicInteger(1);
+    private final AtomicBoolean ownerReleased = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    public FileSystemReferenceCounter(FileSystem fileSystem)
+    {
+        this.fileSystem = requireNonNull(fileSystem, "fileSystem is null");
+    }
+
+    /**
+     * Acquire a reference to the file system.
+     *
+     * @throws IOException if the file system has already been closed
+     */
+    public void retain()
+            throws IOException
+    {
+        while (true) {
+            int count = references.get();
+            if (count <= 0 || closed.get()) {
+                throw new IOException("Filesystem closed");
+            }
+            if (references.compareAndSet(count, count + 1)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Acquire a reference to the file system for a stream.
+     *
+     * @throws IOException if the file system has already been closed
+     */
+    public StreamReference retainStream()
+            throws IOException
+    {
+        retain();
+        return new StreamReference(this);
+    }
+
+    /**
+     * Release the initial reference, held by the owner of the file system.
+     */
+    public void releaseOwner()
+    {
+        if (ownerReleased.compareAndSet(false, true)) {
+            release();
+        }
+    }
+
+    /**
+     * Release a reference to the file system, and close the file system
+     * if this was the last reference.
+     */
+    public void release()
+    {
+        if (references.decrementAndGet() == 0) {
+            close();
+        }
+    }
+
+    /**
+     * Marks the file system as closed without closing it, because the caller closes it.
+     */
+    public void markClosed()
+    {
+        closed.set(true);
+    }
+
+    /**
+     * Close the file system regardless of the outstanding references.
+     */
+    public void close()
+    {
+        if (closed.compareAndSet(false, true)) {
+            try {
+                fileSystem.close();
+            }
+            catch (IOException e) {
+                log.error("Error occurred when closing file system", e);
+            }
+        }
+    }
+
+    public int getReferenceCount()
+    {
+        return references.get();
+    }
+
+    /**
+     * @return the number of streams that have not been closed
+     */
+    public int getStreamReferenceCount()
+    {
+        return references.get() - (ownerReleased.get() ? 0 : 1);
+    }
+
+    public boolean isClosed()
+    {
+        return closed.get();
+    }
+
+    /**
+     * Reference held by a single stream, which can be released only once.
+     */
+    static final class StreamReference
+    {
+        private final FileSystemReferenceCounter referenceCounter;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private StreamReference(FileSystemReferenceCounter referenceCounter)
+        {
+            this.referenceCounter = requireNonNull(referenceCounter, "referenceCounter is null");
+        }
+
+        /**
+         * @return true if the reference was released by this call
+         */
+        public boolean release()
+        {
+            if (!released.compareAndSet(false, true)) {
+                return false;
+            }
+            referenceCounter.release();
+            return true;
+        }
+    }
+}
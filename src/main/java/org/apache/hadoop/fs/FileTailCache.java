@@ -0,0 +1,191 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import org.apache.hadoop.conf.Configuration;
+
+import java.util.Objects;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * In-heap cache of the last bytes of files, where columnar formats keep their
+ * footer. Every split of a file starts by reading the footer, so caching the tail
+ * saves one remote read for each split but the first. A tail is identified by the
+ * path, length and modification time of the file.
+ * <p>
+ * The cache is disabled by default, and is enabled for each scheme with
+ * {@code fs.<scheme>.tail-cache.enabled} (default {@value #TAIL_CACHE_ENABLED_KEY}).
+ * There is a single cache for the process, configured when it is first used:
+ * {@value #TAIL_CACHE_TAIL_SIZE_KEY} and {@value #TAIL_CACHE_MAX_SIZE_KEY}.
+ */
+public final class FileTailCache
+{
+    public static final String TAIL_CACHE_ENABLED_KEY = "fs.tail-cache.enabled";
+    public static final String TAIL_CACHE_TAIL_SIZE_KEY = "fs.tail-cache.tail-size";
+    public static final String TAIL_CACHE_MAX_SIZE_KEY = "fs.tail-cache.max-size";
+
+    private static final int DEFAULT_TAIL_SIZE = 256 * 1024;
+    private static final long DEFAULT_MAX_SIZE = 64 * 1024 * 1024;
+
+    private static volatile FileTailCache instance;
+
+    private final int tailSize;
+    private final long maxSize;
+    private final Cache<TailKey, byte[]> tails;
+
+    private FileTailCache(int tailSize, long maxSize)
+    {
+        checkArgument(tailSize > 0, "tailSize must be positive");
+        checkArgument(maxSize > 0, "maxSize must be positive");
+        this.tailSize = tailSize;
+        this.maxSize = maxSize;
+        this.tails = CacheBuilder.newBuilder()
+                .maximumWeight(maxSize)
+                .weigher(new Weigher<TailKey, byte[]>()
+                {
+                    @Override
+                    public int weigh(TailKey key, byte[] tail)
+                    {
+                        return tail.length;
+                    }
+                })
+                .recordStats()
+                .build();
+    }
+
+    static boolean isEnabled(Configuration conf, String scheme)
+    {
+        return SchemeConfiguration.getBoolean(conf, scheme, TAIL_CACHE_ENABLED_KEY, false);
+    }
+
+    static FileTailCache getInstance(Configuration conf)
+    {
+        FileTailCache cache = instance;
+        if (cache != null) {
+            return cache;
+        }
+        synchronized (FileTailCache.class) {
+            if (instance == null) {
+                instance = new FileTailCache(
+                        conf.getInt(TAIL_CACHE_TAIL_SIZE_KEY, DEFAULT_TAIL_SIZE),
+                        conf.getLong(TAIL_CACHE_MAX_SIZE_KEY, DEFAULT_MAX_SIZE));
+            }
+            return instance;
+        }
+    }
+
+    /**
+     * @return the cache, or null if it has not been used yet
+     */
+    public static FileTailCache getInstance()
+    {
+        return instance;
+    }
+
+    public int getTailSize()
+    {
+        return tailSize;
+    }
+
+    public long getMaxSize()
+    {
+        return maxSize;
+    }
+
+    public long getSize()
+    {
+        long size = 0;
+        for (byte[] tail : tails.asMap().values()) {
+            size += tail.length;
+        }
+        return size;
+    }
+
+    public long getHitCount()
+    {
+        return tails.stats().hitCount();
+    }
+
+    public long getMissCount()
+    {
+        return tails.stats().missCount();
+    }
+
+    public long getEvictionCount()
+    {
+        return tails.stats().evictionCount();
+    }
+
+    byte[] get(String path, long length, long modificationTime)
+    {
+        return tails.getIfPresent(new TailKey(path, length, modificationTime));
+    }
+
+    void put(String path, long length, long modificationTime, byte[] tail)
+    {
+        tails.put(new TailKey(path, length, modificationTime), tail);
+    }
+
+    @Override
+    public String toString()
+    {
+        return toStringHelper(this)
+                .add("tailSize", tailSize)
+                .add("maxSize", maxSize)
+                .add("hitCount", getHitCount())
+                .add("missCount", getMissCount())
+                .toString();
+    }
+
+    private static final class TailKey
+    {
+        private final String path;
+        private final long length;
+        private final long modificationTime;
+
+        private TailKey(String path, long length, long modificationTime)
+        {
+            this.path = requireNonNull(path, "path is null");
+            this.length = length;
+            this.modificationTime = modificationTime;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            TailKey that = (TailKey) o;
+            return Objects.equals(path, that.path) &&
+                    length == that.length &&
+                    modificationTime == that.modificationTime;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(path, length, modificationTime);
+        }
+    }
+}
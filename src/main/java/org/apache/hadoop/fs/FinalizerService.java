@@ -14,30 +14,98 @@
 package org.apache.hadoop.fs;
 
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.PrestoFileSystemCacheStats.DurationDistribution;
 
 import java.lang.ref.PhantomReference;
 import java.lang.ref.ReferenceQueue;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
 import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
+/**
+ * Runs the cleanup of referents after they are garbage collected. The cleanups run on a
+ * pool of {@value #FINALIZER_CLEANUP_THREADS_KEY} threads (default 4), which is set by
+ * the configuration of the file systems that use the service. The finalizer thread only
+ * queues the cleanups, and never runs them itself, so that a cleanup timeout never
+ * interrupts it.
+ */
 public class FinalizerService
 {
     public static final Log log = LogFactory.getLog(FinalizerService.class);
 
+    public static final String FINALIZER_CLEANUP_THREADS_KEY = "fs.finalizer.cleanup-threads";
+
     private static final long REMOVE_TIMEOUT = 5000;
+    private static final int DEFAULT_CLEANUP_THREADS = 4;
+    private static final long DEFAULT_CLEANUP_TIMEOUT_MILLIS = SECONDS.toMillis(60);
+    // When this many cleanups are waiting for a worker, the finalizer thread waits for
+    // room in the queue, which stops it from draining the reference queue any faster.
+    private static final int MAX_QUEUED_CLEANUPS = 1000;
 
     private static FinalizerService instance;
 
     private final Set<FinalizerReference> finalizers = Sets.newSetFromMap(new ConcurrentHashMap<FinalizerReference, Boolean>());
     private final ReferenceQueue<Object> finalizerQueue = new ReferenceQueue<>();
+    private final ThreadPoolExecutor cleanupExecutor;
+    private final ScheduledExecutorService timeoutExecutor = newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("hadoop-finalizer-service-timeout").setDaemon(true).build());
+    private final AtomicInteger pendingCleanups = new AtomicInteger();
+    private final LongAdder timedOutCleanups = new LongAdder();
+    private final DurationDistribution cleanupTime = new DurationDistribution();
+    private volatile long cleanupTimeoutMillis = DEFAULT_CLEANUP_TIMEOUT_MILLIS;
+    private volatile boolean shutdown;
     private Thread finalizerThread;
 
-    private FinalizerService() {}
+    private FinalizerService()
+    {
+        this(MAX_QUEUED_CLEANUPS);
+    }
+
+    FinalizerService(int maxQueuedCleanups)
+    {
+        cleanupExecutor = new ThreadPoolExecutor(
+                DEFAULT_CLEANUP_THREADS,
+                DEFAULT_CLEANUP_THREADS,
+                60,
+                SECONDS,
+                new ArrayBlockingQueue<Runnable>(maxQueuedCleanups),
+                new ThreadFactoryBuilder().setNameFormat("hadoop-finalizer-service-cleanup-%s").setDaemon(true).build(),
+                new WaitForQueuePolicy());
+        cleanupExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Returns the shared service, with the number of cleanup threads of the configuration,
+     * when it sets {@value #FINALIZER_CLEANUP_THREADS_KEY}.
+     */
+    public static FinalizerService getInstance(Configuration conf)
+    {
+        FinalizerService finalizer = getInstance();
+        int cleanupThreads = conf.getInt(FINALIZER_CLEANUP_THREADS_KEY, 0);
+        if (cleanupThreads > 0 && cleanupThreads != finalizer.getCleanupThreads()) {
+            finalizer.setCleanupThreads(cleanupThreads);
+        }
+        return finalizer;
+    }
 
     public static synchronized FinalizerService getInstance()
     {
@@ -49,7 +117,7 @@ public class FinalizerService
         return instance;
     }
 
-    private void start()
+    synchronized void start()
     {
         if (finalizerThread != null) {
             return;
@@ -75,6 +143,23 @@ public class FinalizerService
         finalizerThread.start();
     }
 
+    /**
+     * Stops the finalizer thread, and waits for the cleanups that are already queued to finish.
+     * Referents collected after this call are not cleaned up.
+     */
+    synchronized void shutdown()
+            throws InterruptedException
+    {
+        shutdown = true;
+        if (finalizerThread != null) {
+            finalizerThread.interrupt();
+            finalizerThread.join();
+        }
+        cleanupExecutor.shutdown();
+        cleanupExecutor.awaitTermination(Long.MAX_VALUE, MILLISECONDS);
+        timeoutExecutor.shutdownNow();
+    }
+
     /**
      * When referent is freed by the garbage collector, run cleanup.
      * <p>
@@ -84,17 +169,98 @@ public class FinalizerService
     {
         requireNonNull(referent, "referent is null");
         requireNonNull(cleanup, "cleanup is null");
+        checkState(!shutdown, "FinalizerService is shut down");
         finalizers.add(new FinalizerReference(referent, finalizerQueue, cleanup));
     }
 
+    /**
+     * Set the number of threads running cleanups in parallel.
+     */
+    public void setCleanupThreads(int cleanupThreads)
+    {
+        checkArgument(cleanupThreads > 0, "cleanupThreads must be positive");
+        synchronized (cleanupExecutor) {
+            if (cleanupThreads > cleanupExecutor.getMaximumPoolSize()) {
+                cleanupExecutor.setMaximumPoolSize(cleanupThreads);
+                cleanupExecutor.setCorePoolSize(cleanupThreads);
+            }
+            else {
+                cleanupExecutor.setCorePoolSize(cleanupThreads);
+                cleanupExecutor.setMaximumPoolSize(cleanupThreads);
+            }
+        }
+    }
+
+    public int getCleanupThreads()
+    {
+        return cleanupExecutor.getMaximumPoolSize();
+    }
+
+    /**
+     * Set the time after which a running cleanup is interrupted. A cleanup that does
+     * not respond to interruption keeps its thread busy, but it no longer delays the
+     * other cleanups as long as there are other cleanup threads.
+     */
+    public void setCleanupTimeoutMillis(long cleanupTimeoutMillis)
+    {
+        checkArgument(cleanupTimeoutMillis > 0, "cleanupTimeoutMillis must be positive");
+        this.cleanupTimeoutMillis = cleanupTimeoutMillis;
+    }
+
+    public long getCleanupTimeoutMillis()
+    {
+        return cleanupTimeoutMillis;
+    }
+
+    /**
+     * @return the number of referents that have not been garbage collected yet
+     */
+    public int getRegisteredFinalizers()
+    {
+        return finalizers.size();
+    }
+
+    /**
+     * @return the number of garbage collected referents whose cleanup is queued or running
+     */
+    public int getPendingCleanups()
+    {
+        return pendingCleanups.get();
+    }
+
+    public long getTimedOutCleanups()
+    {
+        return timedOutCleanups.sum();
+    }
+
+    public DurationDistribution getCleanupTime()
+    {
+        return cleanupTime;
+    }
+
     private void processFinalizerQueue()
     {
         while (!Thread.currentThread().isInterrupted()) {
             try {
-                FinalizerReference finalizer = (FinalizerReference) finalizerQueue.remove(REMOVE_TIMEOUT);
+                final FinalizerReference finalizer = (FinalizerReference) finalizerQueue.remove(REMOVE_TIMEOUT);
                 if (finalizer != null) {
                     finalizers.remove(finalizer);
-                    finalizer.cleanup();
+                    pendingCleanups.incrementAndGet();
+                    try {
+                        cleanupExecutor.execute(new Runnable()
+                        {
+                            @Override
+                            public void run()
+                            {
+                                runCleanup(finalizer);
+                            }
+                        });
+                    }
+                    catch (RejectedExecutionException e) {
+                        // the service is shut down while waiting for room in the queue, and the cleanup is dropped
+                        pendingCleanups.decrementAndGet();
+                        return;
+                    }
                 }
             }
             catch (InterruptedException e) {
@@ -106,6 +272,87 @@ public class FinalizerService
         }
     }
 
+    private void runCleanup(FinalizerReference finalizer)
+    {
+        long start = System.nanoTime();
+        CleanupTimeout timeout = new CleanupTimeout(Thread.currentThread());
+        ScheduledFuture<?> timeoutFuture = timeoutExecutor.schedule(timeout, cleanupTimeoutMillis, MILLISECONDS);
+        try {
+            finalizer.cleanup();
+        }
+        catch (Throwable e) {
+            log.error("Exception in finalizer cleanup", e);
+        }
+        finally {
+            timeoutFuture.cancel(false);
+            timeout.finish();
+            pendingCleanups.decrementAndGet();
+            cleanupTime.add(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Interrupts a cleanup that runs for too long.
+     */
+    private class CleanupTimeout
+            implements Runnable
+    {
+        private final Thread thread;
+        private boolean finished;
+
+        public CleanupTimeout(Thread thread)
+        {
+            this.thread = requireNonNull(thread, "thread is null");
+        }
+
+        @Override
+        public synchronized void run()
+        {
+            if (!finished) {
+                finished = true;
+                timedOutCleanups.increment();
+                log.warn("Finalizer cleanup did not finish within " + cleanupTimeoutMillis + "ms, interrupting " + thread.getName());
+                thread.interrupt();
+            }
+        }
+
+        /**
+         * Called by the cleanup thread once the cleanup is done, so that the interrupt
+         * of a timed out cleanup does not leak into the next cleanup on the same thread.
+         */
+        public synchronized void finish()
+        {
+            if (finished) {
+                Thread.interrupted();
+            }
+            finished = true;
+        }
+    }
+
+    /**
+     * Makes the finalizer thread wait for room in the queue of a busy pool, rather than
+     * run the cleanup itself, where a cleanup timeout would interrupt the finalizer thread.
+     */
+    private static class WaitForQueuePolicy
+            implements RejectedExecutionHandler
+    {
+        @Override
+        public void rejectedExecution(Runnable task, ThreadPoolExecutor executor)
+        {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("Cleanup executor is shut down");
+            }
+            try {
+                // the pool is at its maximum size, and its threads stay alive while the queue is not empty
+                executor.getQueue().put(task);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted while waiting to queue a cleanup", e);
+            }
+        }
+    }
+
     private static class FinalizerReference
             extends PhantomReference<Object>
     {
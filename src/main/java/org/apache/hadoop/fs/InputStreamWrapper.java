@@ -13,14 +13,183 @@
  */
 package org.apache.hadoop.fs;
 
+import org.apache.hadoop.fs.FileSystemReferenceCounter.StreamReference;
+import org.apache.hadoop.io.ElasticByteBufferPool;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.function.IntFunction;
+
+import static org.apache.hadoop.fs.StreamCapabilities.PREADBYTEBUFFER;
+import static org.apache.hadoop.fs.StreamCapabilities.READBYTEBUFFER;
+import static org.apache.hadoop.fs.StreamCapabilities.VECTOREDIO;
+
 public class InputStreamWrapper
         extends FSDataInputStream
 {
+    // heap buffers used to read into direct buffers when the stream cannot, shared by all streams
+    private static final ElasticByteBufferPool transferBuffers = new ElasticByteBufferPool();
+    private static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+
     private final FileSystem fileSystem;
+    private final StreamReference reference;
+    private final VectoredReadCoalescer vectoredReadCoalescer;
+    private final boolean byteBufferReadable;
+    private final boolean byteBufferPositionedReadable;
 
     public InputStreamWrapper(FSDataInputStream inputStream, FileSystem fileSystem)
+    {
+        this(inputStream, fileSystem, null, null);
+    }
+
+    /**
+     * @param reference reference to the file system held by this stream, which is released on close
+     * @param vectoredReadCoalescer implementation of vectored reads if the stream does not have a native one,
+     * or null to use the default implementation of the stream
+     */
+    InputStreamWrapper(FSDataInputStream inputStream, FileSystem fileSystem, StreamReference reference, VectoredReadCoalescer vectoredReadCoalescer)
     {
         super(inputStream);
         this.fileSystem = fileSystem;
+        this.reference = reference;
+        this.vectoredReadCoalescer = inputStream.hasCapability(VECTOREDIO) ? null : vectoredReadCoalescer;
+        this.byteBufferReadable = inputStream.hasCapability(READBYTEBUFFER);
+        this.byteBufferPositionedReadable = inputStream.hasCapability(PREADBYTEBUFFER);
+    }
+
+    /**
+     * Reads into the buffer directly if the stream supports it. Otherwise reads into the array
+     * of a heap buffer, or copies from a pooled transfer buffer into a direct buffer.
+     */
+    @Override
+    public int read(ByteBuffer buffer)
+            throws IOException
+    {
+        if (byteBufferReadable) {
+            return super.read(buffer);
+        }
+        if (!buffer.hasRemaining()) {
+            return 0;
+        }
+        if (buffer.hasArray()) {
+            int read = read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            if (read > 0) {
+                buffer.position(buffer.position() + read);
+            }
+            return read;
+        }
+        ByteBuffer transfer = transferBuffers.getBuffer(false, TRANSFER_BUFFER_SIZE);
+        try {
+            int read = read(transfer.array(), transfer.arrayOffset(), Math.min(buffer.remaining(), TRANSFER_BUFFER_SIZE));
+            if (read > 0) {
+                buffer.put(transfer.array(), transfer.arrayOffset(), read);
+            }
+            return read;
+        }
+        finally {
+            transferBuffers.putBuffer(transfer);
+        }
+    }
+
+    @Override
+    public int read(long position, ByteBuffer buffer)
+            throws IOException
+    {
+        if (byteBufferPositionedReadable) {
+            return super.read(position, buffer);
+        }
+        if (!buffer.hasRemaining()) {
+            return 0;
+        }
+        if (buffer.hasArray()) {
+            int read = read(position, buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            if (read > 0) {
+                buffer.position(buffer.position() + read);
+            }
+            return read;
+        }
+        ByteBuffer transfer = transferBuffers.getBuffer(false, TRANSFER_BUFFER_SIZE);
+        try {
+            int read = read(position, transfer.array(), transfer.arrayOffset(), Math.min(buffer.remaining(), TRANSFER_BUFFER_SIZE));
+            if (read > 0) {
+                buffer.put(transfer.array(), transfer.arrayOffset(), read);
+            }
+            return read;
+        }
+        finally {
+            transferBuffers.putBuffer(transfer);
+        }
+    }
+
+    @Override
+    public void readFully(long position, ByteBuffer buffer)
+            throws IOException
+    {
+        if (byteBufferPositionedReadable) {
+            super.readFully(position, buffer);
+            return;
+        }
+        while (buffer.hasRemaining()) {
+            int read = read(position, buffer);
+            if (read < 0) {
+                throw new EOFException("Reached the end of stream with " + buffer.remaining() + " bytes left to read");
+            }
+            position += read;
+        }
+    }
+
+    @Override
+    public boolean hasCapability(String capability)
+    {
+        // byte buffer reads are always supported, with a copy if the stream does not support them
+        if (READBYTEBUFFER.equalsIgnoreCase(capability) || PREADBYTEBUFFER.equalsIgnoreCase(capability)) {
+            return true;
+        }
+        return super.hasCapability(capability);
+    }
+
+    @Override
+    public int minSeekForVectorReads()
+    {
+        if (vectoredReadCoalescer == null) {
+            return super.minSeekForVectorReads();
+        }
+        return vectoredReadCoalescer.getMinSeekSize();
+    }
+
+    @Override
+    public int maxReadSizeForVectorReads()
+    {
+        if (vectoredReadCoalescer == null) {
+            return super.maxReadSizeForVectorReads();
+        }
+        return vectoredReadCoalescer.getMaxMergedSize();
+    }
+
+    @Override
+    public void readVectored(List<? extends FileRange> ranges, IntFunction<ByteBuffer> allocate)
+            throws IOException
+    {
+        if (vectoredReadCoalescer == null) {
+            super.readVectored(ranges, allocate);
+            return;
+        }
+        vectoredReadCoalescer.readVectored(this, ranges, allocate);
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        try {
+            super.close();
+        }
+        finally {
+            if (reference != null) {
+                reference.release();
+            }
+        }
     }
 }
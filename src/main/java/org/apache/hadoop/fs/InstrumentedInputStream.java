@@ -0,0 +1,245 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs;
+
+import org.apache.hadoop.fs.statistics.IOStatistics;
+import org.apache.hadoop.fs.statistics.IOStatisticsSource;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.function.IntFunction;
+
+import static java.util.Locale.ENGLISH;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Stream that records the {@link StreamStatistics} of the underlying stream. The optional
+ * interfaces are implemented by delegating to the underlying stream, which throws
+ * {@link UnsupportedOperationException} if it does not support them.
+ */
+class InstrumentedInputStream
+        extends FSInputStream
+        implements ByteBufferReadable, ByteBufferPositionedReadable, CanSetReadahead, CanSetDropBehind, CanUnbuffer, StreamCapabilities, IOStatisticsSource
+{
+    private final FSDataInputStream in;
+    private final StreamStatistics statistics;
+    private final StreamStatisticsListener listener;
+    private boolean closed;
+
+    /**
+     * @param listener listener notified when the stream is closed, or null
+     */
+    public InstrumentedInputStream(FSDataInputStream in, StreamStatistics statistics, StreamStatisticsListener listener)
+    {
+        this.in = requireNonNull(in, "in is null");
+        this.statistics = requireNonNull(statistics, "statistics is null");
+        this.listener = listener;
+    }
+
+    @Override
+    public int read()
+            throws IOException
+    {
+        long start = System.nanoTime();
+        int value = in.read();
+        statistics.recordRead(value < 0 ? -1 : 1, System.nanoTime() - start);
+        return value;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length)
+            throws IOException
+    {
+        long start = System.nanoTime();
+        int read = in.read(buffer, offset, length);
+        statistics.recordRead(read, System.nanoTime() - start);
+        return read;
+    }
+
+    @Override
+    public int read(ByteBuffer buffer)
+            throws IOException
+    {
+        long start = System.nanoTime();
+        int read = in.read(buffer);
+        statistics.recordRead(read, System.nanoTime() - start);
+        return read;
+    }
+
+    @Override
+    public int read(long position, byte[] buffer, int offset, int length)
+            throws IOException
+    {
+        long start = System.nanoTime();
+        int read = in.read(position, buffer, offset, length);
+        statistics.recordRead(read, System.nanoTime() - start);
+        return read;
+    }
+
+    @Override
+    public int read(long position, ByteBuffer buffer)
+            throws IOException
+    {
+        long start = System.nanoTime();
+        int read = in.read(position, buffer);
+        statistics.recordRead(read, System.nanoTime() - start);
+        return read;
+    }
+
+    @Override
+    public void readFully(long position, ByteBuffer buffer)
+            throws IOException
+    {
+        long start = System.nanoTime();
+        int length = buffer.remaining();
+        in.readFully(position, buffer);
+        statistics.recordRead(length, System.nanoTime() - start);
+    }
+
+    @Override
+    public void readFully(long position, byte[] buffer, int offset, int length)
+            throws IOException
+    {
+        long start = System.nanoTime();
+        in.readFully(position, buffer, offset, length);
+        statistics.recordRead(length, System.nanoTime() - start);
+    }
+
+    @Override
+    public void readFully(long position, byte[] buffer)
+            throws IOException
+    {
+        readFully(position, buffer, 0, buffer.length);
+    }
+
+    @Override
+    public int minSeekForVectorReads()
+    {
+        return in.minSeekForVectorReads();
+    }
+
+    @Override
+    public int maxReadSizeForVectorReads()
+    {
+        return in.maxReadSizeForVectorReads();
+    }
+
+    @Override
+    public void readVectored(List<? extends FileRange> ranges, IntFunction<ByteBuffer> allocate)
+            throws IOException
+    {
+        // the reads complete asynchronously, so only the request is recorded
+        long start = System.nanoTime();
+        in.readVectored(ranges, allocate);
+        long bytes = 0;
+        for (FileRange range : ranges) {
+            bytes += range.getLength();
+        }
+        statistics.recordRead((int) Math.min(bytes, Integer.MAX_VALUE), System.nanoTime() - start);
+    }
+
+    @Override
+    public void seek(long targetPosition)
+            throws IOException
+    {
+        long position = in.getPos();
+        if (targetPosition != position) {
+            statistics.recordSeek(targetPosition - position);
+        }
+        in.seek(targetPosition);
+    }
+
+    @Override
+    public long getPos()
+            throws IOException
+    {
+        return in.getPos();
+    }
+
+    @Override
+    public boolean seekToNewSource(long targetPosition)
+            throws IOException
+    {
+        return in.seekToNewSource(targetPosition);
+    }
+
+    @Override
+    public int available()
+            throws IOException
+    {
+        return in.available();
+    }
+
+    @Override
+    public void setReadahead(Long readahead)
+            throws IOException
+    {
+        in.setReadahead(readahead);
+    }
+
+    @Override
+    public void setDropBehind(Boolean dropBehind)
+            throws IOException
+    {
+        in.setDropBehind(dropBehind);
+    }
+
+    @Override
+    public void unbuffer()
+    {
+        in.unbuffer();
+    }
+
+    @Override
+    public boolean hasCapability(String capability)
+    {
+        // only the capabilities of the operations delegated by this stream are passed through
+        switch (capability.toLowerCase(ENGLISH)) {
+            case READAHEAD:
+            case DROPBEHIND:
+            case UNBUFFER:
+            case READBYTEBUFFER:
+            case PREADBYTEBUFFER:
+            case VECTOREDIO:
+                return in.hasCapability(capability);
+            case IOSTATISTICS:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public IOStatistics getIOStatistics()
+    {
+        return statistics.getIOStatistics();
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            in.close();
+        }
+        finally {
+            StreamStatistics.streamClosed(listener, statistics);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs;
+
+import org.apache.hadoop.fs.statistics.IOStatistics;
+import org.apache.hadoop.fs.statistics.IOStatisticsSource;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static java.util.Locale.ENGLISH;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Stream that records the {@link StreamStatistics} of the underlying stream.
+ */
+class InstrumentedOutputStream
+        extends OutputStream
+        implements Syncable, StreamCapabilities, Abortable, IOStatisticsSource
+{
+    private final FSDataOutputStream out;
+    private final StreamStatistics statistics;
+    private final StreamStatisticsListener listener;
+    private boolean closed;
+
+    /**
+     * @param listener listener notified when the stream is closed, or null
+     */
+    public InstrumentedOutputStream(FSDataOutputStream out, StreamStatistics statistics, StreamStatisticsListener listener)
+    {
+        this.out = requireNonNull(out, "out is null");
+        this.statistics = requireNonNull(statistics, "statistics is null");
+        this.listener = listener;
+    }
+
+    @Override
+    public void write(int value)
+            throws IOException
+    {
+        long start = System.nanoTime();
+        out.write(value);
+        statistics.recordWrite(1, System.nanoTime() - start);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length)
+            throws IOException
+    {
+        long start = System.nanoTime();
+        out.write(buffer, offset, length);
+        statistics.recordWrite(length, System.nanoTime() - start);
+    }
+
+    @Override
+    public void flush()
+            throws IOException
+    {
+        long start = System.nanoTime();
+        out.flush();
+        statistics.recordBlocked(System.nanoTime() - start);
+    }
+
+    @Override
+    public void hflush()
+            throws IOException
+    {
+        long start = System.nanoTime();
+        out.hflush();
+        statistics.recordBlocked(System.nanoTime() - start);
+    }
+
+    @Override
+    public void hsync()
+            throws IOException
+    {
+        long start = System.nanoTime();
+        out.hsync();
+        statistics.recordBlocked(System.nanoTime() - start);
+    }
+
+    @Override
+    public boolean hasCapability(String capability)
+    {
+        // only the capabilities of the operations delegated by this stream are passed through
+        switch (capability.toLowerCase(ENGLISH)) {
+            case HFLUSH:
+            case HSYNC:
+            case ABORTABLE_STREAM:
+                return out.hasCapability(capability);
+            case IOSTATISTICS:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public AbortableResult abort()
+    {
+        return out.abort();
+    }
+
+    @Override
+    public IOStatistics getIOStatistics()
+    {
+        return statistics.getIOStatistics();
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        long start = System.nanoTime();
+        try {
+            // closing an object store stream usually uploads the data
+            out.close();
+        }
+        finally {
+            statistics.recordBlocked(System.nanoTime() - start);
+            StreamStatistics.streamClosed(listener, statistics);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.security.UserGroupInformation;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Reports file systems and streams that were garbage collected without being closed.
+ * <p>
+ * Leaks are always counted. When leak detection is enabled with
+ * {@value #LEAK_DETECTION_SAMPLE_RATE_KEY}, a sample of the file systems and streams
+ * also records where they were created, so that the owner of a leak can be found.
+ * Capturing the stack trace is the only significant cost, so a small sample rate
+ * can be left enabled in production.
+ */
+public final class LeakDetector
+{
+    public static final String LEAK_DETECTION_SAMPLE_RATE_KEY = "fs.leak-detection.sample-rate";
+
+    private static final Log log = LogFactory.getLog(LeakDetector.class);
+
+    private static final LongAdder fileSystemLeaks = new LongAdder();
+    private static final LongAdder streamLeaks = new LongAdder();
+
+    private LeakDetector() {}
+
+    /**
+     * @return the number of file systems that were garbage collected while some of their streams were not closed
+     */
+    public static long getFileSystemLeaks()
+    {
+        return fileSystemLeaks.sum();
+    }
+
+    /**
+     * @return the number of streams that were garbage collected without being closed
+     */
+    public static long getStreamLeaks()
+    {
+        return streamLeaks.sum();
+    }
+
+    static double getSampleRate(Configuration conf)
+    {
+        if (conf == null) {
+            return 0;
+        }
+        return conf.getDouble(LEAK_DETECTION_SAMPLE_RATE_KEY, 0);
+    }
+
+    /**
+     * @return the creation site of the resource if it is sampled, or null otherwise
+     */
+    static CreationSite sample(double sampleRate, String resource)
+    {
+        if (sampleRate <= 0 || ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            return null;
+        }
+        return new CreationSite(resource);
+    }
+
+    /**
+     * @param creationSite the creation site of the file system, or null if it was not sampled
+     */
+    static void reportFileSystemLeak(String resource, CreationSite creationSite, int unclosedStreams)
+    {
+        fileSystemLeaks.increment();
+        String message = "File system " + resource + " was garbage collected with " + unclosedStreams + " unclosed streams (" + getFileSystemLeaks() + " file system leaks so far)";
+        if (creationSite == null) {
+            log.warn(message + ", set " + LEAK_DETECTION_SAMPLE_RATE_KEY + " to record where file systems and streams are created");
+        }
+        else {
+            log.warn(message + ", " + creationSite, creationSite.getStackTrace());
+        }
+    }
+
+    /**
+     * @param creationSite the creation site of the stream, or null if it was not sampled
+     */
+    static void reportStreamLeak(CreationSite creationSite)
+    {
+        streamLeaks.increment();
+        if (creationSite != null) {
+            log.warn("Stream was garbage collected without being closed (" + getStreamLeaks() + " stream leaks so far), " + creationSite, creationSite.getStackTrace());
+        }
+        else if (log.isDebugEnabled()) {
+            log.debug("Stream was garbage collected without being closed (" + getStreamLeaks() + " stream leaks so far)");
+        }
+    }
+
+    static final class CreationSite
+    {
+        private final String resource;
+        private final String user;
+        private final long creationTimeMillis = System.currentTimeMillis();
+        private final Throwable stackTrace = new Throwable("Created here");
+
+        private CreationSite(String resource)
+        {
+            this.resource = requireNonNull(resource, "resource is null");
+            this.user = getCurrentUser();
+        }
+
+        public Throwable getStackTrace()
+        {
+            return stackTrace;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "created for " + resource + " by " + user + " " + (System.currentTimeMillis() - creationTimeMillis) + "ms ago";
+        }
+
+        private static String getCurrentUser()
+        {
+            try {
+                return UserGroupInformation.getCurrentUser().getUserName();
+            }
+            catch (IOException | RuntimeException e) {
+                return "unknown user";
+            }
+        }
+    }
+}
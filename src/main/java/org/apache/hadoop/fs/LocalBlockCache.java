@@ -0,0 +1,374 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs;
+
+import com.google.common.hash.Hashing;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Cache of fixed size blocks of remote files on local disk. A block is identified
+ * by the path and version (modification time and etag) of the file, and by its index
+ * in the file, so that a modified file is never served from stale blocks. A block is
+ * memory mapped on its first hit, and the mapping is shared by the later hits. The
+ * least recently used blocks are deleted when the total size of the blocks exceeds
+ * the maximum size.
+ * <p>
+ * The cache is disabled by default, and is enabled for each scheme with
+ * {@code fs.<scheme>.block-cache.enabled} (default {@value #BLOCK_CACHE_ENABLED_KEY}).
+ * There is one cache for each directory, configured when it is first used:
+ * {@value #BLOCK_CACHE_DIRECTORY_KEY}, {@value #BLOCK_CACHE_MAX_SIZE_KEY} and
+ * {@value #BLOCK_CACHE_BLOCK_SIZE_KEY}. Blocks left over by a previous process are
+ * deleted when the cache is created.
+ */
+public final class LocalBlockCache
+{
+    public static final String BLOCK_CACHE_ENABLED_KEY = "fs.block-cache.enabled";
+    public static final String BLOCK_CACHE_DIRECTORY_KEY = "fs.block-cache.directory";
+    public static final String BLOCK_CACHE_MAX_SIZE_KEY = "fs.block-cache.max-size";
+    public static final String BLOCK_CACHE_BLOCK_SIZE_KEY = "fs.block-cache.block-size";
+
+    private static final Log log = LogFactory.getLog(LocalBlockCache.class);
+
+    private static final long DEFAULT_MAX_SIZE = 10L * 1024 * 1024 * 1024;
+    private static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+    private static final String BLOCK_FILE_SUFFIX = ".block";
+
+    private static final ConcurrentMap<Path, LocalBlockCache> caches = new ConcurrentHashMap<>();
+
+    private final Path directory;
+    private final long maxSize;
+    private final int blockSize;
+
+    // access ordered, guarded by this
+    private final LinkedHashMap<String, Block> blocks = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+
+    private final LongAdder hitBytes = new LongAdder();
+    private final LongAdder missBytes = new LongAdder();
+    private final LongAdder evictedBlocks = new LongAdder();
+
+    private LocalBlockCache(Path directory, long maxSize, int blockSize)
+    {
+        checkArgument(maxSize > 0, "maxSize must be positive");
+        checkArgument(blockSize > 0, "blockSize must be positive");
+        this.directory = requireNonNull(directory, "directory is null");
+        this.maxSize = maxSize;
+        this.blockSize = blockSize;
+    }
+
+    static boolean isEnabled(Configuration conf, String scheme)
+    {
+        return SchemeConfiguration.getBoolean(conf, scheme, BLOCK_CACHE_ENABLED_KEY, false);
+    }
+
+    /**
+     * @return the cache for the directory configured in {@value #BLOCK_CACHE_DIRECTORY_KEY}
+     */
+    static LocalBlockCache getInstance(Configuration conf)
+            throws IOException
+    {
+        String directory = conf.get(BLOCK_CACHE_DIRECTORY_KEY);
+        if (directory == null) {
+            throw new IOException(BLOCK_CACHE_DIRECTORY_KEY + " is not set");
+        }
+        Path path = Paths.get(directory).toAbsolutePath();
+        LocalBlockCache cache = caches.get(path);
+        if (cache != null) {
+            return cache;
+        }
+        synchronized (caches) {
+            cache = caches.get(path);
+            if (cache == null) {
+                cache = new LocalBlockCache(
+                        path,
+                        conf.getLong(BLOCK_CACHE_MAX_SIZE_KEY, DEFAULT_MAX_SIZE),
+                        conf.getInt(BLOCK_CACHE_BLOCK_SIZE_KEY, DEFAULT_BLOCK_SIZE));
+                cache.initialize();
+                caches.put(path, cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * @return the caches created so far, by directory
+     */
+    public static Map<String, LocalBlockCache> getCaches()
+    {
+        Map<String, LocalBlockCache> result = new LinkedHashMap<>();
+        for (Map.Entry<Path, LocalBlockCache> entry : caches.entrySet()) {
+            result.put(entry.getKey().toString(), entry.getValue());
+        }
+        return result;
+    }
+
+    private void initialize()
+            throws IOException
+    {
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + BLOCK_FILE_SUFFIX)) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    public int getBlockSize()
+    {
+        return blockSize;
+    }
+
+    public long getMaxSize()
+    {
+        return maxSize;
+    }
+
+    public synchronized long getSize()
+    {
+        return size;
+    }
+
+    public synchronized int getBlockCount()
+    {
+        return blocks.size();
+    }
+
+    /**
+     * @return the total size of the blocks served from the cache
+     */
+    public long getHitBytes()
+    {
+        return hitBytes.sum();
+    }
+
+    /**
+     * @return the total size of the blocks read from the remote file system
+     */
+    public long getMissBytes()
+    {
+        return missBytes.sum();
+    }
+
+    public long getEvictedBlocks()
+    {
+        return evictedBlocks.sum();
+    }
+
+    static String blockKey(String path, long modificationTime, String etag, long blockIndex)
+    {
+        return Hashing.sha256()
+                .hashString(path + '\0' + modificationTime + '\0' + (etag == null ? "" : etag) + '\0' + blockIndex, UTF_8)
+                .toString();
+    }
+
+    /**
+     * @return the memory mapped block, or null if the block is not cached
+     */
+    ByteBuffer get(String key)
+    {
+        Block block;
+        synchronized (this) {
+            block = blocks.get(key);
+            if (block == null) {
+                return null;
+            }
+            if (block.getMapping() != null) {
+                hitBytes.add(block.getSize());
+                return block.getMapping().duplicate();
+            }
+        }
+
+        ByteBuffer mapping;
+        try (FileChannel channel = FileChannel.open(blockFile(key), READ)) {
+            mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        catch (NoSuchFileException e) {
+            // the block was evicted concurrently
+            remove(key, block);
+            return null;
+        }
+        catch (IOException e) {
+            log.warn("Error reading block from local cache " + directory, e);
+            if (remove(key, block)) {
+                deleteBlockFile(key);
+            }
+            return null;
+        }
+
+        synchronized (this) {
+            // concurrent hits may map the block more than once, only one mapping is kept
+            if (blocks.get(key) == block && block.getMapping() == null) {
+                block.setMapping(mapping);
+            }
+        }
+        hitBytes.add(mapping.remaining());
+        return mapping.duplicate();
+    }
+
+    /**
+     * Stores a block read from the remote file system. Errors are logged, since
+     * the caller already has the data.
+     */
+    void put(String key, byte[] data, int length)
+    {
+        missBytes.add(length);
+        if (length > maxSize) {
+            return;
+        }
+        Path file = blockFile(key);
+        try {
+            Path temporaryFile = Files.createTempFile(directory, key, ".tmp");
+            try {
+                Files.write(temporaryFile, length == data.length ? data : Arrays.copyOf(data, length));
+                Files.move(temporaryFile, file, ATOMIC_MOVE);
+            }
+            finally {
+                Files.deleteIfExists(temporaryFile);
+            }
+        }
+        catch (IOException e) {
+            log.warn("Error writing block to local cache " + directory, e);
+            return;
+        }
+
+        List<String> evictedKeys;
+        synchronized (this) {
+            Block previous = blocks.put(key, new Block(length));
+            if (previous != null) {
+                size -= previous.getSize();
+            }
+            size += length;
+            evictedKeys = evictLeastRecentlyUsed();
+        }
+        // mapped buffers of the blocks stay valid after the files are deleted, and a block
+        // added again before its file is deleted is dropped by the next get, like any missing file
+        for (String evictedKey : evictedKeys) {
+            deleteBlockFile(evictedKey);
+        }
+    }
+
+    /**
+     * @return true if the block was removed by this call
+     */
+    private synchronized boolean remove(String key, Block block)
+    {
+        if (!blocks.remove(key, block)) {
+            return false;
+        }
+        size -= block.getSize();
+        return true;
+    }
+
+    /**
+     * Removes the least recently used blocks from the index. The caller deletes
+     * their files, outside of the lock.
+     *
+     * @return the keys of the evicted blocks
+     */
+    private List<String> evictLeastRecentlyUsed()
+    {
+        List<String> evictedKeys = new ArrayList<>();
+        Iterator<Map.Entry<String, Block>> iterator = blocks.entrySet().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            Map.Entry<String, Block> eldest = iterator.next();
+            iterator.remove();
+            size -= eldest.getValue().getSize();
+            evictedBlocks.increment();
+            evictedKeys.add(eldest.getKey());
+        }
+        return evictedKeys;
+    }
+
+    private void deleteBlockFile(String key)
+    {
+        try {
+            Files.deleteIfExists(blockFile(key));
+        }
+        catch (IOException e) {
+            log.warn("Error deleting block from local cache " + directory, e);
+        }
+    }
+
+    private Path blockFile(String key)
+    {
+        return directory.resolve(key + BLOCK_FILE_SUFFIX);
+    }
+
+    @Override
+    public String toString()
+    {
+        return toStringHelper(this)
+                .add("directory", directory)
+                .add("maxSize", maxSize)
+                .add("blockSize", blockSize)
+                .add("size", getSize())
+                .add("hitBytes", getHitBytes())
+                .add("missBytes", getMissBytes())
+                .toString();
+    }
+
+    private static final class Block
+    {
+        private final long size;
+        // guarded by the cache
+        private ByteBuffer mapping;
+
+        public Block(long size)
+        {
+            this.size = size;
+        }
+
+        public long getSize()
+        {
+            return size;
+        }
+
+        public ByteBuffer getMapping()
+        {
+            return mapping;
+        }
+
+        public void setMapping(ByteBuffer mapping)
+        {
+            this.mapping = requireNonNull(mapping, "mapping is null");
+        }
+    }
+}
@@ -13,17 +13,45 @@
  */
 package org.apache.hadoop.fs;
 
+import org.apache.hadoop.fs.FileSystemReferenceCounter.StreamReference;
+
 import java.io.IOException;
+import java.io.OutputStream;
 
 public class OutputStreamWrapper
         extends FSDataOutputStream
 {
     private final FileSystem fileSystem;
+    private final StreamReference reference;
 
     public OutputStreamWrapper(FSDataOutputStream delegate, FileSystem fileSystem)
             throws IOException
     {
-        super(delegate, null, delegate.getPos());
+        this(delegate, delegate.getPos(), fileSystem, null);
+    }
+
+    /**
+     * @param delegate the stream to write to, usually an {@link FSDataOutputStream} or a stream wrapping one
+     * @param reference reference to the file system held by this stream, which is released on close
+     */
+    OutputStreamWrapper(OutputStream delegate, long startPosition, FileSystem fileSystem, StreamReference reference)
+    {
+        super(delegate, null, startPosition);
         this.fileSystem = fileSystem;
+        this.reference = reference;
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        try {
+            super.close();
+        }
+        finally {
+            if (reference != null) {
+                reference.release();
+            }
+        }
     }
 }
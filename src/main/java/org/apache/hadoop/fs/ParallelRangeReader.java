@@ -0,0 +1,205 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Reads the chunks fetched ahead by a {@link ReadAheadInputStream} from up to
+ * {@code maxStreams} streams of the same file, so that a single sequential scan
+ * of a large file uses several connections. Each stream reads one chunk at a time,
+ * and the read-ahead stream reassembles the chunks in order.
+ * <p>
+ * Parallel reads are disabled by default, and are configured for each scheme:
+ * {@code fs.<scheme>.parallel-read.enabled}, {@code fs.<scheme>.parallel-read.streams},
+ * {@code fs.<scheme>.parallel-read.chunk-size} and {@code fs.<scheme>.parallel-read.min-file-size}.
+ * The scheme specific properties default to {@value #PARALLEL_READ_ENABLED_KEY},
+ * {@value #PARALLEL_READ_STREAMS_KEY}, {@value #PARALLEL_READ_CHUNK_SIZE_KEY} and
+ * {@value #PARALLEL_READ_MIN_FILE_SIZE_KEY}. Smaller files are read with a single stream.
+ */
+final class ParallelRangeReader
+        implements ReadAheadInputStream.RangeReader
+{
+    public static final String PARALLEL_READ_ENABLED_KEY = "fs.parallel-read.enabled";
+    public static final String PARALLEL_READ_STREAMS_KEY = "fs.parallel-read.streams";
+    public static final String PARALLEL_READ_CHUNK_SIZE_KEY = "fs.parallel-read.chunk-size";
+    public static final String PARALLEL_READ_MIN_FILE_SIZE_KEY = "fs.parallel-read.min-file-size";
+
+    private static final Log log = LogFactory.getLog(ParallelRangeReader.class);
+
+    private static final int DEFAULT_STREAMS = 4;
+    private static final int DEFAULT_CHUNK_SIZE = 16 * 1024 * 1024;
+    private static final long DEFAULT_MIN_FILE_SIZE = 256 * 1024 * 1024;
+
+    private final FileSystem fileSystem;
+    private final Path path;
+    private final int bufferSize;
+    private final int maxStreams;
+
+    // guarded by this, waiters for a stream are notified when a stream is released,
+    // a stream fails to open or the reader is closed
+    private final Deque<FSDataInputStream> idleStreams = new ArrayDeque<>();
+    private final List<FSDataInputStream> streams = new ArrayList<>();
+    private int openedStreams;
+    private boolean closed;
+
+    /**
+     * @param fileSystem file system used to open the streams, usually the raw file system
+     */
+    public ParallelRangeReader(FileSystem fileSystem, Path path, int bufferSize, int maxStreams)
+    {
+        checkArgument(maxStreams > 0, "maxStreams must be positive");
+        this.fileSystem = requireNonNull(fileSystem, "fileSystem is null");
+        this.path = requireNonNull(path, "path is null");
+        this.bufferSize = bufferSize;
+        this.maxStreams = maxStreams;
+    }
+
+    static boolean isEnabled(Configuration conf, String scheme)
+    {
+        return SchemeConfiguration.getBoolean(conf, scheme, PARALLEL_READ_ENABLED_KEY, false);
+    }
+
+    static int getStreams(Configuration conf, String scheme)
+    {
+        return SchemeConfiguration.getInt(conf, scheme, PARALLEL_READ_STREAMS_KEY, DEFAULT_STREAMS);
+    }
+
+    static int getChunkSize(Configuration conf, String scheme)
+    {
+        return SchemeConfiguration.getInt(conf, scheme, PARALLEL_READ_CHUNK_SIZE_KEY, DEFAULT_CHUNK_SIZE);
+    }
+
+    static long getMinFileSize(Configuration conf, String scheme)
+    {
+        return SchemeConfiguration.getLong(conf, scheme, PARALLEL_READ_MIN_FILE_SIZE_KEY, DEFAULT_MIN_FILE_SIZE);
+    }
+
+    /**
+     * Reads the whole range with a single stream, unless the end of the file is reached.
+     */
+    @Override
+    public int read(long position, byte[] buffer, int offset, int length)
+            throws IOException
+    {
+        FSDataInputStream stream = acquireStream();
+        try {
+            // chunks are assigned to the streams in order, so this is usually a forward seek
+            if (stream.getPos() != position) {
+                stream.seek(position);
+            }
+            int total = 0;
+            while (total < length) {
+                int read = stream.read(buffer, offset + total, length - total);
+                if (read < 0) {
+                    break;
+                }
+                total += read;
+            }
+            return (total == 0 && length > 0) ? -1 : total;
+        }
+        finally {
+            releaseStream(stream);
+        }
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        List<FSDataInputStream> streams;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            streams = new ArrayList<>(this.streams);
+            notifyAll();
+        }
+        for (FSDataInputStream stream : streams) {
+            try {
+                stream.close();
+            }
+            catch (IOException | RuntimeException e) {
+                log.warn("Error closing stream of " + path, e);
+            }
+        }
+    }
+
+    private FSDataInputStream acquireStream()
+            throws IOException
+    {
+        synchronized (this) {
+            while (true) {
+                if (closed) {
+                    throw new IOException("Stream is closed");
+                }
+                FSDataInputStream stream = idleStreams.poll();
+                if (stream != null) {
+                    return stream;
+                }
+                if (openedStreams < maxStreams) {
+                    openedStreams++;
+                    break;
+                }
+                try {
+                    wait();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for a stream of " + path);
+                }
+            }
+        }
+
+        FSDataInputStream stream;
+        try {
+            stream = fileSystem.open(path, bufferSize);
+        }
+        catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                openedStreams--;
+                // a waiter may open the stream instead
+                notify();
+            }
+            throw e;
+        }
+        synchronized (this) {
+            if (!closed) {
+                streams.add(stream);
+                return stream;
+            }
+        }
+        stream.close();
+        throw new IOException("Stream is closed");
+    }
+
+    private synchronized void releaseStream(FSDataInputStream stream)
+    {
+        idleStreams.add(stream);
+        notify();
+    }
+}
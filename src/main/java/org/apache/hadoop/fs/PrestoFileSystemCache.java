@@ -14,29 +14,59 @@
 package org.apache.hadoop.fs;
 
 import com.facebook.presto.hadoop.FileSystemFactory;
-import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.MapMaker;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.LeakDetector.CreationSite;
+import org.apache.hadoop.fs.PrestoFileSystemCacheStats.SchemeStats;
 import org.apache.hadoop.security.UserGroupInformation;
 import org.apache.hadoop.security.UserGroupInformation.AuthenticationMethod;
 import org.apache.hadoop.util.ReflectionUtils;
 
+import javax.security.auth.Subject;
+
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.URI;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
 import static com.google.common.base.MoreObjects.toStringHelper;
 import static com.google.common.base.Strings.nullToEmpty;
-import static java.lang.String.format;
+import static com.google.common.base.Throwables.throwIfInstanceOf;
+import static com.google.common.base.Throwables.throwIfUnchecked;
 import static java.util.Locale.ENGLISH;
 import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.apache.hadoop.fs.CommonConfigurationKeysPublic.FS_AUTOMATIC_CLOSE_DEFAULT;
+import static org.apache.hadoop.fs.CommonConfigurationKeysPublic.FS_AUTOMATIC_CLOSE_KEY;
 import static org.apache.hadoop.fs.FileSystem.getFileSystemClass;
 import static org.apache.hadoop.security.UserGroupInformationShim.getSubject;
 
@@ -47,9 +77,44 @@ public class PrestoFileSystemCache
     public static final String PRESTO_GCS_OAUTH_ACCESS_TOKEN_KEY = "presto.gcs.oauth-access-token";
     public static final String PRESTO_S3_IAM_ROLE = "presto.hive.s3.iam-role";
     public static final String PRESTO_S3_ACCESS_KEY = "presto.s3.access-key";
+    public static final String CACHE_MAX_SIZE_KEY = "fs.cache.max-size";
+    public static final int CACHE_MAX_SIZE_DEFAULT = 1000;
+    public static final String CACHE_IDLE_TIMEOUT_KEY = "fs.cache.idle-timeout";
+    public static final String CACHE_REFRESH_AHEAD_KEY = "fs.cache.refresh-ahead.enabled";
+    // Callers may have obtained a file system just before it was retired, and use it
+    // without opening a stream, so the reference of the cache is released late.
+    public static final String CACHE_RETIREMENT_DELAY_KEY = "fs.cache.retirement-delay";
+    public static final long CACHE_RETIREMENT_DELAY_DEFAULT_MILLIS = SECONDS.toMillis(30);
+
+    private static final Object[] NO_CREDENTIALS = new Object[0];
+    private static final long IDLE_CHECK_INTERVAL_NANOS = SECONDS.toNanos(10);
+    private static final int REFRESH_THREADS = 4;
+    private static final int MAX_QUEUED_REFRESHES = 100;
+    private static final int CLOSE_THREADS = 16;
+    private static final int MAX_QUEUED_CLOSES = 1000;
 
     private final AtomicLong unique = new AtomicLong();
-    private final Map<FileSystemKey, FileSystemHolder> map = new HashMap<>();
+    private final ConcurrentMap<FileSystemKey, FileSystemHolder> map = new ConcurrentHashMap<>();
+    private final ConcurrentMap<FileSystemKey, CompletableFuture<Void>> pendingCreations = new ConcurrentHashMap<>();
+    // keys of the cached file systems of each user, maintained after every change to the map
+    private final ConcurrentMap<UserKey, Set<FileSystemKey>> userIndex = new ConcurrentHashMap<>();
+    // key of each cached file system; weak keys are compared by identity
+    private final ConcurrentMap<FileSystem, FileSystemKey> keysByFileSystem = new MapMaker().weakKeys().makeMap();
+    private final AtomicLong nextIdleCheckNanos = new AtomicLong(System.nanoTime());
+    private final Object evictionLock = new Object();
+    // guarded by evictionLock: the entries in the order of their last access at the last scan,
+    // and the number of file systems being created that are not cached yet
+    private final Deque<EvictionCandidate> evictionCandidates = new ArrayDeque<>();
+    private int pendingInserts;
+    private final ScheduledExecutorService retirementExecutor = newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("hadoop-file-system-cache-retirement")
+            .setDaemon(true)
+            .build());
+    // a refresh that does not fit in the queue is skipped, and retried by a later lookup
+    private final ThreadPoolExecutor refreshExecutor = newBoundedExecutor("hadoop-file-system-cache-refresh-%s", REFRESH_THREADS, MAX_QUEUED_REFRESHES, new ThreadPoolExecutor.AbortPolicy());
+    // the closing thread closes the file systems that do not fit in the queue itself
+    private final ThreadPoolExecutor closeExecutor = newBoundedExecutor("hadoop-file-system-cache-close-%s", CLOSE_THREADS, MAX_QUEUED_CLOSES, new ThreadPoolExecutor.CallerRunsPolicy());
+    private final PrestoFileSystemCacheStats stats = new PrestoFileSystemCacheStats(this);
 
     @Override
     FileSystem get(URI uri, Configuration conf)
@@ -78,22 +143,93 @@ public class PrestoFileSystemCache
         super(new Configuration(false));
     }
 
-    private synchronized FileSystem getInternal(URI uri, Configuration conf, long unique)
+    public PrestoFileSystemCacheStats getStats()
+    {
+        return stats;
+    }
+
+    Map<String, Integer> getCachedFileSystemCounts()
+    {
+        Map<String, Integer> counts = new HashMap<>();
+        for (FileSystemKey key : map.keySet()) {
+            counts.merge(key.getScheme(), 1, Integer::sum);
+        }
+        return counts;
+    }
+
+    private FileSystem getInternal(URI uri, Configuration conf, long unique)
             throws IOException
     {
         UserGroupInformation userGroupInformation = UserGroupInformation.getCurrentUser();
         FileSystemKey key = createFileSystemKey(uri, userGroupInformation, unique);
-        Set<?> privateCredentials = getPrivateCredentials(userGroupInformation);
+        // the subject is only used to look at the credentials, so that a cache hit does not copy them
+        Subject credentialsSubject = getCredentialsSubject(userGroupInformation);
+        SchemeStats schemeStats = stats.getSchemeStats(key.getScheme());
 
+        expireIdleFileSystems(conf);
+
+        while (true) {
+            // Fast path: cache hits do not take any lock
+            FileSystemHolder fileSystemHolder = map.get(key);
+            if (fileSystemHolder != null) {
+                boolean refresh = fileSystemRefresh(uri, conf, credentialsSubject, fileSystemHolder);
+                if (refresh && isRefreshAheadEnabled(uri, conf)) {
+                    // keep using the current file system until the replacement is ready
+                    refreshInBackground(key, uri, conf, userGroupInformation, getPrivateCredentials(credentialsSubject), fileSystemHolder, schemeStats);
+                    refresh = false;
+                }
+                if (!refresh) {
+                    schemeStats.recordHit();
+                    fileSystemHolder.recordAccess();
+                    return fileSystemHolder.getFileSystem();
+                }
+            }
+
+            // Only one thread creates the file system for a key. The other threads wait for
+            // the creation to finish, and then check the cache again, because the created file
+            // system may not match their credentials. A failed creation is propagated to the
+            // waiting threads, but is not cached, so the next lookup tries again.
+            CompletableFuture<Void> creation = new CompletableFuture<>();
+            CompletableFuture<Void> existingCreation = pendingCreations.putIfAbsent(key, creation);
+            if (existingCreation != null) {
+                awaitCreation(existingCreation);
+                continue;
+            }
+            try {
+                FileSystem fileSystem = createOrRefresh(key, uri, conf, credentialsSubject, schemeStats);
+                creation.complete(null);
+                return fileSystem;
+            }
+            catch (Throwable e) {
+                creation.completeExceptionally(e);
+                throw e;
+            }
+            finally {
+                pendingCreations.remove(key, creation);
+            }
+        }
+    }
+
+    private FileSystem createOrRefresh(FileSystemKey key, URI uri, Configuration conf, Subject credentialsSubject, SchemeStats schemeStats)
+            throws IOException
+    {
+        // Another thread may have created or refreshed the file system since the lookup
         FileSystemHolder fileSystemHolder = map.get(key);
         if (fileSystemHolder == null) {
-            int maxSize = conf.getInt("fs.cache.max-size", 1000);
-            if (map.size() >= maxSize) {
-                throw new IOException(format("FileSystem max cache size has been reached: %s", maxSize));
+            schemeStats.recordMiss();
+            evictLeastRecentlyUsed(conf.getInt(CACHE_MAX_SIZE_KEY, CACHE_MAX_SIZE_DEFAULT), conf);
+            try {
+                FileSystem fileSystem = createFileSystem(uri, conf, schemeStats);
+                fileSystemHolder = new FileSystemHolder(fileSystem, getPrivateCredentials(credentialsSubject), isAutomaticClose(conf));
+                cache(key, fileSystemHolder);
+                return fileSystem;
+            }
+            finally {
+                synchronized (evictionLock) {
+                    pendingInserts--;
+                    evictionLock.notifyAll();
+                }
             }
-            FileSystem fileSystem = createFileSystem(uri, conf);
-            fileSystemHolder = new FileSystemHolder(fileSystem, privateCredentials);
-            map.put(key, fileSystemHolder);
         }
 
         // Private credentials are only set when using Kerberos authentication.
@@ -103,20 +239,250 @@ public class PrestoFileSystemCache
         // a part of the FileSystemKey, but part of the FileSystemHolder. When a
         // Kerberos re-login occurs, re-create the file system and cache it using
         // the same key.
-        if (fileSystemRefresh(uri, conf, privateCredentials, fileSystemHolder)) {
-            map.remove(key);
-            FileSystem fileSystem = createFileSystem(uri, conf);
-            fileSystemHolder = new FileSystemHolder(fileSystem, privateCredentials);
-            map.put(key, fileSystemHolder);
+        if (fileSystemRefresh(uri, conf, credentialsSubject, fileSystemHolder)) {
+            schemeStats.recordRefresh();
+            FileSystemHolder staleHolder = fileSystemHolder;
+            FileSystem fileSystem = createFileSystem(uri, conf, schemeStats);
+            fileSystemHolder = new FileSystemHolder(fileSystem, getPrivateCredentials(credentialsSubject), isAutomaticClose(conf));
+            if (replaceCached(key, staleHolder, fileSystemHolder)) {
+                retire(staleHolder, conf);
+            }
+            else {
+                cache(key, fileSystemHolder);
+            }
+            return fileSystem;
         }
 
+        schemeStats.recordHit();
+        fileSystemHolder.recordAccess();
         return fileSystemHolder.getFileSystem();
     }
 
-    private boolean fileSystemRefresh(URI uri, Configuration conf, Set<?> privateCredentials, FileSystemHolder fileSystemHolder)
+    private static void awaitCreation(CompletableFuture<Void> creation)
+            throws IOException
+    {
+        try {
+            creation.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for file system creation");
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throwIfInstanceOf(cause, IOException.class);
+            throwIfUnchecked(cause);
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Refresh ahead is only used when the Kerberos ticket of the same principal has been
+     * renewed. A changed GCS token or S3 role or key may belong to a different identity,
+     * so the current file system must not be used for such requests.
+     */
+    private static boolean isRefreshAheadEnabled(URI uri, Configuration conf)
+    {
+        return isHdfs(uri) && conf.getBoolean(CACHE_REFRESH_AHEAD_KEY, false);
+    }
+
+    private void refreshInBackground(
+            final FileSystemKey key,
+            final URI uri,
+            Configuration conf,
+            final UserGroupInformation userGroupInformation,
+            final Object[] privateCredentials,
+            final FileSystemHolder staleHolder,
+            final SchemeStats schemeStats)
+    {
+        if (!staleHolder.startRefresh()) {
+            // a refresh is already in progress
+            return;
+        }
+        // the caller may modify the configuration after this call returns
+        final Configuration refreshConf = new Configuration(conf);
+        try {
+            refreshExecutor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    schemeStats.recordRefresh();
+                    try {
+                        // the file system must be initialized as the requesting user
+                        userGroupInformation.doAs(new PrivilegedExceptionAction<Void>()
+                        {
+                            @Override
+                            public Void run()
+                                    throws IOException
+                            {
+                                replace(key, uri, refreshConf, privateCredentials, staleHolder, schemeStats);
+                                return null;
+                            }
+                        });
+                    }
+                    catch (Throwable e) {
+                        schemeStats.recordRefreshFailure();
+                        log.warn("Failed to refresh file system in background: " + key, e);
+                        // allow the next lookup to retry
+                        staleHolder.cancelRefresh();
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Too many pending refreshes, skipping background refresh: " + key);
+            }
+            staleHolder.cancelRefresh();
+        }
+    }
+
+    private void replace(FileSystemKey key, URI uri, Configuration conf, Object[] privateCredentials, FileSystemHolder staleHolder, SchemeStats schemeStats)
+            throws IOException
+    {
+        CompletableFuture<Void> creation = new CompletableFuture<>();
+        if (pendingCreations.putIfAbsent(key, creation) != null) {
+            // a lookup is creating the file system for this key, try again later
+            staleHolder.cancelRefresh();
+            return;
+        }
+        try {
+            if (map.get(key) != staleHolder) {
+                // the stale file system has been evicted or replaced in the meantime
+                return;
+            }
+            FileSystemHolder fileSystemHolder = new FileSystemHolder(createFileSystem(uri, conf, schemeStats), privateCredentials, isAutomaticClose(conf));
+            if (replaceCached(key, staleHolder, fileSystemHolder)) {
+                retire(staleHolder, conf);
+            }
+            else {
+                retire(fileSystemHolder, conf);
+            }
+        }
+        finally {
+            // a failed refresh is not propagated to the waiting lookups, since the
+            // stale file system is still usable, and they create their own if it is not
+            creation.complete(null);
+            pendingCreations.remove(key, creation);
+        }
+    }
+
+    /**
+     * Makes room for a new entry by evicting the least recently used file systems, and
+     * reserves the room until the caller has cached the entry. The entries are ordered by
+     * their last access when no candidate is left, and a candidate accessed since then is
+     * skipped, so the cache is not scanned for every miss. When the room is reserved by
+     * file systems that are still being created, the caller waits for one of them.
+     */
+    private void evictLeastRecentlyUsed(int maxSize, Configuration conf)
+    {
+        synchronized (evictionLock) {
+            while (map.size() + pendingInserts >= maxSize) {
+                EvictionCandidate candidate = evictionCandidates.poll();
+                if (candidate == null) {
+                    if (!scanEvictionCandidates()) {
+                        if (pendingInserts == 0) {
+                            break;
+                        }
+                        // the other entries are still being created, wait until one of them is cached
+                        try {
+                            evictionLock.wait();
+                        }
+                        catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            break;
+                        }
+                    }
+                    continue;
+                }
+                if (candidate.isUnchanged(map.get(candidate.getKey()))) {
+                    evict(candidate.getKey(), candidate.getFileSystemHolder(), conf);
+                }
+            }
+            pendingInserts++;
+        }
+    }
+
+    /**
+     * @return false if the cache is empty
+     */
+    private boolean scanEvictionCandidates()
+    {
+        List<EvictionCandidate> candidates = new ArrayList<>(map.size());
+        for (Entry<FileSystemKey, FileSystemHolder> entry : map.entrySet()) {
+            candidates.add(new EvictionCandidate(entry.getKey(), entry.getValue()));
+        }
+        candidates.sort(new Comparator<EvictionCandidate>()
+        {
+            @Override
+            public int compare(EvictionCandidate left, EvictionCandidate right)
+            {
+                return Long.signum(left.getLastAccessNanos() - right.getLastAccessNanos());
+            }
+        });
+        evictionCandidates.addAll(candidates);
+        return !candidates.isEmpty();
+    }
+
+    private void expireIdleFileSystems(Configuration conf)
+    {
+        long now = System.nanoTime();
+        long nextCheck = nextIdleCheckNanos.get();
+        if (now - nextCheck < 0 || !nextIdleCheckNanos.compareAndSet(nextCheck, now + IDLE_CHECK_INTERVAL_NANOS)) {
+            return;
+        }
+        long idleTimeout = conf.getTimeDuration(CACHE_IDLE_TIMEOUT_KEY, 0, MILLISECONDS);
+        if (idleTimeout <= 0) {
+            return;
+        }
+        long idleTimeoutNanos = MILLISECONDS.toNanos(idleTimeout);
+        for (Entry<FileSystemKey, FileSystemHolder> entry : map.entrySet()) {
+            if (now - entry.getValue().getLastAccessNanos() > idleTimeoutNanos) {
+                evict(entry.getKey(), entry.getValue(), conf);
+            }
+        }
+    }
+
+    private void evict(FileSystemKey key, FileSystemHolder fileSystemHolder, Configuration conf)
+    {
+        if (uncache(key, fileSystemHolder)) {
+            stats.getSchemeStats(key.getScheme()).recordEviction();
+            if (log.isDebugEnabled()) {
+                log.debug("Evicted file system from cache: " + key);
+            }
+            retire(fileSystemHolder, conf);
+        }
+    }
+
+    /**
+     * Releases the reference of the cache to a file system that is no longer cached, after
+     * the {@value #CACHE_RETIREMENT_DELAY_KEY}. The underlying file system is closed once
+     * all streams opened from it are closed.
+     */
+    private void retire(FileSystemHolder fileSystemHolder, Configuration conf)
+    {
+        FileSystem fileSystem = fileSystemHolder.getFileSystem();
+        if (!(fileSystem instanceof PrestoFilterFileSystemWrapper)) {
+            // only closed by FinalizerService
+            return;
+        }
+        final FileSystemReferenceCounter referenceCounter = ((PrestoFilterFileSystemWrapper) fileSystem).getReferenceCounter();
+        long delay = Math.max(0, conf.getTimeDuration(CACHE_RETIREMENT_DELAY_KEY, CACHE_RETIREMENT_DELAY_DEFAULT_MILLIS, MILLISECONDS));
+        retirementExecutor.schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                referenceCounter.releaseOwner();
+            }
+        }, delay, MILLISECONDS);
+    }
+
+    private boolean fileSystemRefresh(URI uri, Configuration conf, Subject credentialsSubject, FileSystemHolder fileSystemHolder)
     {
         if (isHdfs(uri)) {
-            return !fileSystemHolder.getPrivateCredentials().equals(privateCredentials);
+            return !fileSystemHolder.hasPrivateCredentials(credentialsSubject);
         }
         if ("gs".equals(uri.getScheme())) {
             String existingGcsToken = fileSystemHolder.getFileSystem().getConf().get(PRESTO_GCS_OAUTH_ACCESS_TOKEN_KEY);
@@ -143,6 +509,21 @@ public class PrestoFileSystemCache
         return false;
     }
 
+    private FileSystem createFileSystem(URI uri, Configuration conf, SchemeStats schemeStats)
+            throws IOException
+    {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            FileSystem fileSystem = createFileSystem(uri, conf);
+            failed = false;
+            return fileSystem;
+        }
+        finally {
+            schemeStats.recordCreation(System.nanoTime() - start, failed);
+        }
+    }
+
     private FileSystem createFileSystem(URI uri, Configuration conf)
             throws IOException
     {
@@ -153,7 +534,29 @@ public class PrestoFileSystemCache
         final FileSystem original = (FileSystem) ReflectionUtils.newInstance(clazz, conf);
         original.initialize(uri, conf);
         FileSystem wrapper = createPrestoFileSystemWrapper(original);
-        FinalizerService.getInstance().addFinalizer(wrapper, new Runnable()
+        if (wrapper instanceof PrestoFilterFileSystemWrapper) {
+            // The file system is normally closed when its last reference is released, after
+            // it is retired. The finalizer only releases the reference of the cache for file
+            // systems that were never retired, and reports the streams that were leaked, whose
+            // references are released when they are collected.
+            final FileSystemReferenceCounter referenceCounter = ((PrestoFilterFileSystemWrapper) wrapper).getReferenceCounter();
+            final String resource = uri.toString();
+            final CreationSite creationSite = LeakDetector.sample(LeakDetector.getSampleRate(conf), resource);
+            FinalizerService.getInstance(conf).addFinalizer(wrapper, new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    int unclosedStreams = referenceCounter.getStreamReferenceCount();
+                    if (!referenceCounter.isClosed() && unclosedStreams > 0) {
+                        LeakDetector.reportFileSystemLeak(resource, creationSite, unclosedStreams);
+                    }
+                    referenceCounter.releaseOwner();
+                }
+            });
+            return wrapper;
+        }
+        FinalizerService.getInstance(conf).addFinalizer(wrapper, new Runnable()
         {
             @Override
             public void run()
@@ -175,48 +578,174 @@ public class PrestoFileSystemCache
     }
 
     @Override
-    synchronized void remove(Key ignored, FileSystem fileSystem)
+    void remove(Key ignored, FileSystem fileSystem)
     {
         if (fileSystem == null) {
             return;
         }
-        Iterator<Entry<FileSystemKey, FileSystemHolder>> iterator = map.entrySet().iterator();
-        while (iterator.hasNext()) {
-            if (fileSystem.equals(iterator.next().getValue().getFileSystem())) {
-                iterator.remove();
-                break;
-            }
+        FileSystemKey key = keysByFileSystem.get(fileSystem);
+        if (key == null) {
+            return;
+        }
+        FileSystemHolder fileSystemHolder = map.get(key);
+        if (fileSystemHolder != null && fileSystemHolder.getFileSystem() == fileSystem) {
+            uncache(key, fileSystemHolder);
         }
     }
 
     @Override
-    synchronized void closeAll()
+    void closeAll()
             throws IOException
     {
-        for (FileSystemHolder fileSystemHolder : map.values()) {
-            fileSystemHolder.getFileSystem().close();
-        }
-        map.clear();
+        closeAll(false);
     }
 
     @Override
-    synchronized void closeAll(boolean onlyAutomatic)
+    void closeAll(boolean onlyAutomatic)
             throws IOException
     {
-        throw new UnsupportedOperationException();
+        Map<FileSystemKey, FileSystemHolder> fileSystems = new HashMap<>();
+        for (Entry<FileSystemKey, FileSystemHolder> entry : map.entrySet()) {
+            if (!onlyAutomatic || entry.getValue().isAutomaticClose()) {
+                fileSystems.put(entry.getKey(), entry.getValue());
+            }
+        }
+        close(fileSystems);
     }
 
     @Override
-    synchronized void closeAll(UserGroupInformation ugi)
+    void closeAll(UserGroupInformation ugi)
+            throws IOException
+    {
+        Set<FileSystemKey> keys = userIndex.get(createUserKey(ugi));
+        if (keys == null) {
+            return;
+        }
+        Map<FileSystemKey, FileSystemHolder> fileSystems = new HashMap<>();
+        for (FileSystemKey key : keys) {
+            FileSystemHolder fileSystemHolder = map.get(key);
+            if (fileSystemHolder != null) {
+                fileSystems.put(key, fileSystemHolder);
+            }
+        }
+        close(fileSystems);
+    }
+
+    /**
+     * Removes the file systems from the cache, and closes them in parallel.
+     */
+    private void close(Map<FileSystemKey, FileSystemHolder> fileSystems)
             throws IOException
     {
-        throw new UnsupportedOperationException();
+        synchronized (evictionLock) {
+            // do not keep the closed file systems reachable until the next eviction
+            evictionCandidates.clear();
+        }
+        List<Future<?>> futures = new ArrayList<>();
+        for (Entry<FileSystemKey, FileSystemHolder> entry : fileSystems.entrySet()) {
+            if (uncache(entry.getKey(), entry.getValue())) {
+                final FileSystem fileSystem = entry.getValue().getFileSystem();
+                futures.add(closeExecutor.submit(new Callable<Void>()
+                {
+                    @Override
+                    public Void call()
+                            throws IOException
+                    {
+                        fileSystem.close();
+                        return null;
+                    }
+                }));
+            }
+        }
+
+        IOException exception = null;
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while closing file systems");
+            }
+            catch (ExecutionException e) {
+                IOException cause = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                if (exception == null) {
+                    exception = cause;
+                }
+                else {
+                    exception.addSuppressed(cause);
+                }
+            }
+        }
+        if (exception != null) {
+            throw exception;
+        }
+    }
+
+    private void cache(FileSystemKey key, FileSystemHolder fileSystemHolder)
+    {
+        keysByFileSystem.put(fileSystemHolder.getFileSystem(), key);
+        map.put(key, fileSystemHolder);
+        index(key);
+    }
+
+    private boolean replaceCached(FileSystemKey key, FileSystemHolder staleHolder, FileSystemHolder fileSystemHolder)
+    {
+        keysByFileSystem.put(fileSystemHolder.getFileSystem(), key);
+        if (!map.replace(key, staleHolder, fileSystemHolder)) {
+            keysByFileSystem.remove(fileSystemHolder.getFileSystem(), key);
+            return false;
+        }
+        keysByFileSystem.remove(staleHolder.getFileSystem(), key);
+        return true;
+    }
+
+    /**
+     * @return true if the file system was removed from the cache by this call
+     */
+    private boolean uncache(FileSystemKey key, FileSystemHolder fileSystemHolder)
+    {
+        if (!map.remove(key, fileSystemHolder)) {
+            return false;
+        }
+        keysByFileSystem.remove(fileSystemHolder.getFileSystem(), key);
+        userIndex.computeIfPresent(key.getUser(), (user, keys) -> {
+            keys.remove(key);
+            return keys.isEmpty() ? null : keys;
+        });
+        // the key may have been cached again concurrently, after the entry was removed
+        // from the map and before the key was removed from the index
+        if (map.containsKey(key)) {
+            index(key);
+        }
+        return true;
+    }
+
+    private void index(FileSystemKey key)
+    {
+        userIndex.compute(key.getUser(), (user, keys) -> {
+            if (keys == null) {
+                keys = ConcurrentHashMap.newKeySet();
+            }
+            keys.add(key);
+            return keys;
+        });
+    }
+
+    private static boolean isAutomaticClose(Configuration conf)
+    {
+        return conf.getBoolean(FS_AUTOMATIC_CLOSE_KEY, FS_AUTOMATIC_CLOSE_DEFAULT);
     }
 
     private static FileSystemKey createFileSystemKey(URI uri, UserGroupInformation userGroupInformation, long unique)
     {
         String scheme = nullToEmpty(uri.getScheme()).toLowerCase(ENGLISH);
         String authority = nullToEmpty(uri.getAuthority()).toLowerCase(ENGLISH);
+        return new FileSystemKey(scheme, authority, unique, createUserKey(userGroupInformation));
+    }
+
+    private static UserKey createUserKey(UserGroupInformation userGroupInformation)
+    {
         String realUser;
         String proxyUser;
         AuthenticationMethod authenticationMethod = userGroupInformation.getAuthenticationMethod();
@@ -233,24 +762,49 @@ public class PrestoFileSystemCache
             default:
                 throw new IllegalArgumentException("Unsupported authentication method: " + authenticationMethod);
         }
-        return new FileSystemKey(scheme, authority, unique, realUser, proxyUser);
+        return new UserKey(realUser, proxyUser);
     }
 
-    private static Set<?> getPrivateCredentials(UserGroupInformation userGroupInformation)
+    /**
+     * @return the subject holding the private credentials of the user, or null if the user has no private credentials
+     */
+    private static Subject getCredentialsSubject(UserGroupInformation userGroupInformation)
     {
         AuthenticationMethod authenticationMethod = userGroupInformation.getAuthenticationMethod();
         switch (authenticationMethod) {
             case SIMPLE:
-                return ImmutableSet.of();
+                return null;
             case KERBEROS:
-                return ImmutableSet.copyOf(getSubject(userGroupInformation).getPrivateCredentials());
+                return getSubject(userGroupInformation);
             case PROXY:
-                return getPrivateCredentials(userGroupInformation.getRealUser());
+                return getCredentialsSubject(userGroupInformation.getRealUser());
             default:
                 throw new IllegalArgumentException("Unsupported authentication method: " + authenticationMethod);
         }
     }
 
+    private static Object[] getPrivateCredentials(Subject credentialsSubject)
+    {
+        if (credentialsSubject == null) {
+            return NO_CREDENTIALS;
+        }
+        return credentialsSubject.getPrivateCredentials().toArray();
+    }
+
+    private static ThreadPoolExecutor newBoundedExecutor(String nameFormat, int threads, int maxQueued, RejectedExecutionHandler rejectedExecutionHandler)
+    {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                threads,
+                threads,
+                60,
+                SECONDS,
+                new ArrayBlockingQueue<Runnable>(maxQueued),
+                new ThreadFactoryBuilder().setNameFormat(nameFormat).setDaemon(true).build(),
+                rejectedExecutionHandler);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
     private static boolean isHdfs(URI uri)
     {
         String scheme = uri.getScheme();
@@ -262,16 +816,24 @@ public class PrestoFileSystemCache
         private final String scheme;
         private final String authority;
         private final long unique;
-        private final String realUser;
-        private final String proxyUser;
+        private final UserKey user;
 
-        public FileSystemKey(String scheme, String authority, long unique, String realUser, String proxyUser)
+        public FileSystemKey(String scheme, String authority, long unique, UserKey user)
         {
             this.scheme = requireNonNull(scheme, "scheme is null");
             this.authority = requireNonNull(authority, "authority is null");
             this.unique = unique;
-            this.realUser = requireNonNull(realUser, "realUser");
-            this.proxyUser = proxyUser;
+            this.user = requireNonNull(user, "user is null");
+        }
+
+        public String getScheme()
+        {
+            return scheme;
+        }
+
+        public UserKey getUser()
+        {
+            return user;
         }
 
         @Override
@@ -287,14 +849,13 @@ public class PrestoFileSystemCache
             return Objects.equals(scheme, that.scheme) &&
                     Objects.equals(authority, that.authority) &&
                     Objects.equals(unique, that.unique) &&
-                    Objects.equals(realUser, that.realUser) &&
-                    Objects.equals(proxyUser, that.proxyUser);
+                    Objects.equals(user, that.user);
         }
 
         @Override
         public int hashCode()
         {
-            return Objects.hash(scheme, authority, unique, realUser, proxyUser);
+            return Objects.hash(scheme, authority, unique, user);
         }
 
         @Override
@@ -304,21 +865,134 @@ public class PrestoFileSystemCache
                     .add("scheme", scheme)
                     .add("authority", authority)
                     .add("unique", unique)
+                    .add("realUser", user.realUser)
+                    .add("proxyUser", user.proxyUser)
+                    .toString();
+        }
+    }
+
+    private static class UserKey
+    {
+        private final String realUser;
+        private final String proxyUser;
+
+        public UserKey(String realUser, String proxyUser)
+        {
+            this.realUser = requireNonNull(realUser, "realUser");
+            this.proxyUser = proxyUser;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            UserKey that = (UserKey) o;
+            return Objects.equals(realUser, that.realUser) &&
+                    Objects.equals(proxyUser, that.proxyUser);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(realUser, proxyUser);
+        }
+
+        @Override
+        public String toString()
+        {
+            return toStringHelper(this)
                     .add("realUser", realUser)
                     .add("proxyUser", proxyUser)
                     .toString();
         }
     }
 
+    private static class EvictionCandidate
+    {
+        private final FileSystemKey key;
+        private final FileSystemHolder fileSystemHolder;
+        private final long lastAccessNanos;
+
+        public EvictionCandidate(FileSystemKey key, FileSystemHolder fileSystemHolder)
+        {
+            this.key = requireNonNull(key, "key is null");
+            this.fileSystemHolder = requireNonNull(fileSystemHolder, "fileSystemHolder is null");
+            this.lastAccessNanos = fileSystemHolder.getLastAccessNanos();
+        }
+
+        public FileSystemKey getKey()
+        {
+            return key;
+        }
+
+        public FileSystemHolder getFileSystemHolder()
+        {
+            return fileSystemHolder;
+        }
+
+        public long getLastAccessNanos()
+        {
+            return lastAccessNanos;
+        }
+
+        /**
+         * @return true if the entry is still cached, and has not been accessed since it became a candidate
+         */
+        public boolean isUnchanged(FileSystemHolder cachedHolder)
+        {
+            return cachedHolder == fileSystemHolder && fileSystemHolder.getLastAccessNanos() == lastAccessNanos;
+        }
+    }
+
     private static class FileSystemHolder
     {
         private final FileSystem fileSystem;
-        private final Set<?> privateCredentials;
+        private final Object[] privateCredentials;
+        private final boolean automaticClose;
+        private volatile long lastAccessNanos = System.nanoTime();
+        private final AtomicBoolean refreshing = new AtomicBoolean();
 
-        public FileSystemHolder(FileSystem fileSystem, Set<?> privateCredentials)
+        public FileSystemHolder(FileSystem fileSystem, Object[] privateCredentials, boolean automaticClose)
         {
             this.fileSystem = requireNonNull(fileSystem, "fileSystem is null");
-            this.privateCredentials = ImmutableSet.copyOf(requireNonNull(privateCredentials, "privateCredentials is null"));
+            this.privateCredentials = requireNonNull(privateCredentials, "privateCredentials is null");
+            this.automaticClose = automaticClose;
+        }
+
+        /**
+         * @return true if the file system should be closed by the shutdown hook, see {@link CommonConfigurationKeysPublic#FS_AUTOMATIC_CLOSE_KEY}
+         */
+        public boolean isAutomaticClose()
+        {
+            return automaticClose;
+        }
+
+        public void recordAccess()
+        {
+            lastAccessNanos = System.nanoTime();
+        }
+
+        public long getLastAccessNanos()
+        {
+            return lastAccessNanos;
+        }
+
+        /**
+         * @return true if the caller should refresh the file system, false if a refresh is already in progress
+         */
+        public boolean startRefresh()
+        {
+            return refreshing.compareAndSet(false, true);
+        }
+
+        public void cancelRefresh()
+        {
+            refreshing.set(false);
         }
 
         public FileSystem getFileSystem()
@@ -326,9 +1000,41 @@ public class PrestoFileSystemCache
             return fileSystem;
         }
 
-        public Set<?> getPrivateCredentials()
+        /**
+         * Checks if the subject has the same private credentials as when the file system was created.
+         * Credentials are compared by identity first, so that the check does not allocate when the
+         * credentials are unchanged. Equals is only used as a fallback, to keep set semantics.
+         */
+        public boolean hasPrivateCredentials(Subject credentialsSubject)
+        {
+            if (credentialsSubject == null) {
+                return privateCredentials.length == 0;
+            }
+            Set<Object> credentials = credentialsSubject.getPrivateCredentials();
+            if (credentials.size() != privateCredentials.length) {
+                return false;
+            }
+            for (Object credential : credentials) {
+                if (!containsCredential(credential)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean containsCredential(Object credential)
         {
-            return privateCredentials;
+            for (Object privateCredential : privateCredentials) {
+                if (privateCredential == credential) {
+                    return true;
+                }
+            }
+            for (Object privateCredential : privateCredentials) {
+                if (privateCredential.equals(credential)) {
+                    return true;
+                }
+            }
+            return false;
         }
 
         @Override
@@ -336,7 +1042,7 @@ public class PrestoFileSystemCache
         {
             return toStringHelper(this)
                     .add("fileSystem", fileSystem)
-                    .add("privateCredentials", privateCredentials)
+                    .add("privateCredentials", Arrays.asList(privateCredentials))
                     .toString();
         }
     }
@@ -0,0 +1,301 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs;
+
+import com.google.common.collect.ImmutableMap;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Statistics of {@link PrestoFileSystemCache}, broken down by file system scheme.
+ * All getters return live values, and can be polled at any time.
+ */
+public class PrestoFileSystemCacheStats
+{
+    private final ConcurrentMap<String, SchemeStats> schemeStats = new ConcurrentHashMap<>();
+    private final PrestoFileSystemCache cache;
+
+    PrestoFileSystemCacheStats(PrestoFileSystemCache cache)
+    {
+        this.cache = requireNonNull(cache, "cache is null");
+    }
+
+    public Map<String, SchemeStats> getSchemeStats()
+    {
+        return ImmutableMap.copyOf(schemeStats);
+    }
+
+    public SchemeStats getSchemeStats(String scheme)
+    {
+        // avoid computeIfAbsent on the hot path, since it locks the bin even when the value is present
+        SchemeStats stats = schemeStats.get(scheme);
+        if (stats != null) {
+            return stats;
+        }
+        return schemeStats.computeIfAbsent(scheme, SchemeStats::new);
+    }
+
+    /**
+     * @return the number of cached file systems for each scheme
+     */
+    public Map<String, Integer> getSize()
+    {
+        return cache.getCachedFileSystemCounts();
+    }
+
+    @Override
+    public String toString()
+    {
+        return toStringHelper(this)
+                .add("schemeStats", schemeStats.values())
+                .add("size", getSize())
+                .toString();
+    }
+
+    public static class SchemeStats
+    {
+        private final String scheme;
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder refreshes = new LongAdder();
+        private final LongAdder refreshFailures = new LongAdder();
+        private final LongAdder evictions = new LongAdder();
+        private final LongAdder creationFailures = new LongAdder();
+        private final DurationDistribution creationTime = new DurationDistribution();
+
+        SchemeStats(String scheme)
+        {
+            this.scheme = requireNonNull(scheme, "scheme is null");
+        }
+
+        public String getScheme()
+        {
+            return scheme;
+        }
+
+        /**
+         * @return the number of lookups served by a cached file system
+         */
+        public long getHits()
+        {
+            return hits.sum();
+        }
+
+        /**
+         * @return the number of lookups that did not find a cached file system
+         */
+        public long getMisses()
+        {
+            return misses.sum();
+        }
+
+        /**
+         * @return the number of cached file systems rebuilt because the credentials changed
+         */
+        public long getRefreshes()
+        {
+            return refreshes.sum();
+        }
+
+        /**
+         * @return the number of background refreshes that failed, and left the stale file system cached
+         */
+        public long getRefreshFailures()
+        {
+            return refreshFailures.sum();
+        }
+
+        public long getEvictions()
+        {
+            return evictions.sum();
+        }
+
+        public long getCreations()
+        {
+            return creationTime.getCount();
+        }
+
+        public long getCreationFailures()
+        {
+            return creationFailures.sum();
+        }
+
+        /**
+         * @return the time spent creating and initializing file systems, including failed attempts
+         */
+        public DurationDistribution getCreationTime()
+        {
+            return creationTime;
+        }
+
+        void recordHit()
+        {
+            hits.increment();
+        }
+
+        void recordMiss()
+        {
+            misses.increment();
+        }
+
+        void recordRefresh()
+        {
+            refreshes.increment();
+        }
+
+        void recordRefreshFailure()
+        {
+            refreshFailures.increment();
+        }
+
+        void recordEviction()
+        {
+            evictions.increment();
+        }
+
+        void recordCreation(long nanos, boolean failed)
+        {
+            creationTime.add(nanos);
+            if (failed) {
+                creationFailures.increment();
+            }
+        }
+
+        @Override
+        public String toString()
+        {
+            return toStringHelper(this)
+                    .add("scheme", scheme)
+                    .add("hits", getHits())
+                    .add("misses", getMisses())
+                    .add("refreshes", getRefreshes())
+                    .add("refreshFailures", getRefreshFailures())
+                    .add("evictions", getEvictions())
+                    .add("creations", getCreations())
+                    .add("creationFailures", getCreationFailures())
+                    .add("creationTime", creationTime)
+                    .toString();
+        }
+    }
+
+    /**
+     * Histogram of durations with fixed, exponentially growing buckets.
+     */
+    public static class DurationDistribution
+    {
+        // upper bounds of the buckets in milliseconds; the last bucket is unbounded
+        private static final long[] BUCKET_BOUNDS_MILLIS = {1, 5, 10, 50, 100, 500, 1_000, 5_000, 10_000, 30_000, 60_000};
+
+        private final LongAdder[] buckets = new LongAdder[BUCKET_BOUNDS_MILLIS.length + 1];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        DurationDistribution()
+        {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void add(long nanos)
+        {
+            long millis = NANOSECONDS.toMillis(nanos);
+            int bucket = 0;
+            while (bucket < BUCKET_BOUNDS_MILLIS.length && millis >= BUCKET_BOUNDS_MILLIS[bucket]) {
+                bucket++;
+            }
+            buckets[bucket].increment();
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        public long getCount()
+        {
+            return count.sum();
+        }
+
+        public double getAverageMillis()
+        {
+            long count = getCount();
+            if (count == 0) {
+                return 0.0;
+            }
+            return (double) totalNanos.sum() / count / MILLISECONDS.toNanos(1);
+        }
+
+        public double getMaxMillis()
+        {
+            return (double) maxNanos.get() / MILLISECONDS.toNanos(1);
+        }
+
+        /**
+         * @return the number of samples by bucket, keyed by the exclusive upper bound of the bucket
+         */
+        public Map<String, Long> getBuckets()
+        {
+            ImmutableMap.Builder<String, Long> result = ImmutableMap.builder();
+            for (int i = 0; i < BUCKET_BOUNDS_MILLIS.length; i++) {
+                result.put("<" + BUCKET_BOUNDS_MILLIS[i] + "ms", buckets[i].sum());
+            }
+            result.put(">=" + BUCKET_BOUNDS_MILLIS[BUCKET_BOUNDS_MILLIS.length - 1] + "ms", buckets[BUCKET_BOUNDS_MILLIS.length].sum());
+            return result.build();
+        }
+
+        /**
+         * @return upper bound of the bucket containing the given quantile, or the maximum for the last bucket
+         */
+        public double getQuantileUpperBoundMillis(double quantile)
+        {
+            long[] counts = new long[buckets.length];
+            long total = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                counts[i] = buckets[i].sum();
+                total += counts[i];
+            }
+            if (total == 0) {
+                return 0.0;
+            }
+            long target = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_BOUNDS_MILLIS.length; i++) {
+                seen += counts[i];
+                if (seen >= target) {
+                    return BUCKET_BOUNDS_MILLIS[i];
+                }
+            }
+            return getMaxMillis();
+        }
+
+        @Override
+        public String toString()
+        {
+            return toStringHelper(this)
+                    .add("count", getCount())
+                    .add("averageMillis", getAverageMillis())
+                    .add("maxMillis", getMaxMillis())
+                    .toString();
+        }
+    }
+}
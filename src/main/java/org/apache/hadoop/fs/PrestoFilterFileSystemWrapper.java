@@ -13,52 +13,318 @@
  */
 package org.apache.hadoop.fs;
 
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystemReferenceCounter.StreamReference;
+import org.apache.hadoop.fs.LeakDetector.CreationSite;
+import org.apache.hadoop.fs.impl.OpenFileParameters;
 import org.apache.hadoop.fs.permission.FsPermission;
 import org.apache.hadoop.util.Progressable;
+import org.apache.hadoop.util.ReflectionUtils;
 
 import java.io.IOException;
 import java.util.EnumSet;
+import java.util.concurrent.CompletableFuture;
+
+import static org.apache.hadoop.fs.Options.OpenFileOptions.FS_OPTION_OPENFILE_LENGTH;
+import static org.apache.hadoop.util.functional.FutureIO.awaitFuture;
 
 public class PrestoFilterFileSystemWrapper
         extends FilterFileSystem
 {
+    private final FileSystemReferenceCounter referenceCounter;
+    private final double leakDetectionSampleRate;
+    private final boolean readAheadEnabled;
+    private final int readAheadBufferSize;
+    private final int readAheadDepth;
+    private final VectoredReadCoalescer vectoredReadCoalescer;
+    private final boolean blockCacheEnabled;
+    private final boolean tailCacheEnabled;
+    private final boolean parallelReadEnabled;
+    private final int parallelReadStreams;
+    private final int parallelReadChunkSize;
+    private final long parallelReadMinFileSize;
+    private final boolean writeBehindEnabled;
+    private final int writeBehindBufferSize;
+    private final int writeBehindDepth;
+    private final boolean streamStatisticsEnabled;
+    private final StreamStatisticsListener streamStatisticsListener;
+
     public PrestoFilterFileSystemWrapper(FileSystem fs)
     {
         super(fs);
+        this.referenceCounter = new FileSystemReferenceCounter(fs);
+        Configuration conf = fs.getConf();
+        this.leakDetectionSampleRate = LeakDetector.getSampleRate(conf);
+        String scheme = fs.getUri().getScheme();
+        this.readAheadEnabled = conf != null && ReadAheadInputStream.isEnabled(conf, scheme);
+        this.readAheadBufferSize = readAheadEnabled ? ReadAheadInputStream.getBufferSize(conf, scheme) : 0;
+        this.readAheadDepth = readAheadEnabled ? ReadAheadInputStream.getDepth(conf, scheme) : 0;
+        this.vectoredReadCoalescer = conf == null ? null : VectoredReadCoalescer.create(conf, scheme);
+        this.blockCacheEnabled = conf != null && LocalBlockCache.isEnabled(conf, scheme);
+        this.tailCacheEnabled = conf != null && FileTailCache.isEnabled(conf, scheme);
+        this.parallelReadEnabled = conf != null && ParallelRangeReader.isEnabled(conf, scheme);
+        this.parallelReadStreams = parallelReadEnabled ? ParallelRangeReader.getStreams(conf, scheme) : 0;
+        this.parallelReadChunkSize = parallelReadEnabled ? ParallelRangeReader.getChunkSize(conf, scheme) : 0;
+        this.parallelReadMinFileSize = parallelReadEnabled ? ParallelRangeReader.getMinFileSize(conf, scheme) : 0;
+        this.writeBehindEnabled = conf != null && WriteBehindOutputStream.isEnabled(conf, scheme);
+        this.writeBehindBufferSize = writeBehindEnabled ? WriteBehindOutputStream.getBufferSize(conf, scheme) : 0;
+        this.writeBehindDepth = writeBehindEnabled ? WriteBehindOutputStream.getDepth(conf, scheme) : 0;
+        this.streamStatisticsEnabled = conf != null && StreamStatistics.isEnabled(conf);
+        this.streamStatisticsListener = streamStatisticsEnabled ? createStreamStatisticsListener(conf) : null;
+    }
+
+    @Override
+    public FSDataInputStream open(final Path f, final int bufferSize)
+            throws IOException
+    {
+        return openInputStream(f, bufferSize, null, -1, new RawInputStreamOpener()
+        {
+            @Override
+            public FSDataInputStream open()
+                    throws IOException
+            {
+                return getRawFileSystem().open(f, bufferSize);
+            }
+        });
+    }
+
+    @Override
+    public FutureDataInputStreamBuilder openFile(Path path)
+            throws IOException, UnsupportedOperationException
+    {
+        // build against this file system instead of the raw one, so that the stream is wrapped
+        return createDataInputStreamBuilder(this, path);
     }
 
+    /**
+     * Opens the file synchronously. The status given to the builder with {@code withFileStatus}
+     * saves the request for the status of the file when caching or parallel reads are enabled,
+     * and the length given with {@value Options.OpenFileOptions#FS_OPTION_OPENFILE_LENGTH}
+     * saves it when only parallel reads are enabled.
+     */
     @Override
-    public FSDataInputStream open(Path f, int bufferSize)
+    protected CompletableFuture<FSDataInputStream> openFileWithOptions(final Path path, final OpenFileParameters parameters)
             throws IOException
     {
-        return new InputStreamWrapper(getRawFileSystem().open(f, bufferSize), this);
+        long length = parameters.getOptions().getLong(FS_OPTION_OPENFILE_LENGTH, -1);
+        FSDataInputStream stream = openInputStream(path, parameters.getBufferSize(), parameters.getStatus(), length, new RawInputStreamOpener()
+        {
+            @Override
+            public FSDataInputStream open()
+                    throws IOException
+            {
+                return awaitFuture(getRawFileSystem().openFileWithOptions(path, parameters));
+            }
+        });
+        return CompletableFuture.completedFuture(stream);
     }
 
     @Override
-    public FSDataOutputStream append(Path f, int bufferSize, Progressable progress)
+    public FSDataOutputStream append(final Path f, final int bufferSize, final Progressable progress)
             throws IOException
     {
-        return new OutputStreamWrapper(getRawFileSystem().append(f, bufferSize, progress), this);
+        return openStream(f, new StreamOpener<FSDataOutputStream>()
+        {
+            @Override
+            public FSDataOutputStream open(StreamReference reference)
+                    throws IOException
+            {
+                return createOutputStreamWrapper(f, getRawFileSystem().append(f, bufferSize, progress), reference);
+            }
+        });
     }
 
     @Override
-    public FSDataOutputStream create(Path f, FsPermission permission, boolean overwrite, int bufferSize, short replication, long blockSize, Progressable progress)
+    public FSDataOutputStream create(final Path f, final FsPermission permission, final boolean overwrite, final int bufferSize, final short replication, final long blockSize, final Progressable progress)
             throws IOException
     {
-        return new OutputStreamWrapper(getRawFileSystem().create(f, permission, overwrite, bufferSize, replication, blockSize, progress), this);
+        return openStream(f, new StreamOpener<FSDataOutputStream>()
+        {
+            @Override
+            public FSDataOutputStream open(StreamReference reference)
+                    throws IOException
+            {
+                return createOutputStreamWrapper(f, getRawFileSystem().create(f, permission, overwrite, bufferSize, replication, blockSize, progress), reference);
+            }
+        });
     }
 
     @Override
-    public FSDataOutputStream create(Path f, FsPermission permission, EnumSet<CreateFlag> flags, int bufferSize, short replication, long blockSize, Progressable progress, Options.ChecksumOpt checksumOpt)
+    public FSDataOutputStream create(final Path f, final FsPermission permission, final EnumSet<CreateFlag> flags, final int bufferSize, final short replication, final long blockSize, final Progressable progress, final Options.ChecksumOpt checksumOpt)
             throws IOException
     {
-        return new OutputStreamWrapper(getRawFileSystem().create(f, permission, flags, bufferSize, replication, blockSize, progress, checksumOpt), this);
+        return openStream(f, new StreamOpener<FSDataOutputStream>()
+        {
+            @Override
+            public FSDataOutputStream open(StreamReference reference)
+                    throws IOException
+            {
+                return createOutputStreamWrapper(f, getRawFileSystem().create(f, permission, flags, bufferSize, replication, blockSize, progress, checksumOpt), reference);
+            }
+        });
     }
 
     @Override
-    public FSDataOutputStream createNonRecursive(Path f, FsPermission permission, EnumSet<CreateFlag> flags, int bufferSize, short replication, long blockSize, Progressable progress)
+    public FSDataOutputStream createNonRecursive(final Path f, final FsPermission permission, final EnumSet<CreateFlag> flags, final int bufferSize, final short replication, final long blockSize, final Progressable progress)
             throws IOException
     {
-        return new OutputStreamWrapper(getRawFileSystem().createNonRecursive(f, permission, flags, bufferSize, replication, blockSize, progress), this);
+        return openStream(f, new StreamOpener<FSDataOutputStream>()
+        {
+            @Override
+            public FSDataOutputStream open(StreamReference reference)
+                    throws IOException
+            {
+                return createOutputStreamWrapper(f, getRawFileSystem().createNonRecursive(f, permission, flags, bufferSize, replication, blockSize, progress), reference);
+            }
+        });
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        // an explicit close closes the underlying file system immediately
+        referenceCounter.markClosed();
+        super.close();
+    }
+
+    /**
+     * @param status status of the file given by the caller, or null
+     * @param length length of the file given by the caller, or -1
+     */
+    private FSDataInputStream openInputStream(final Path path, final int bufferSize, final FileStatus status, final long length, final RawInputStreamOpener opener)
+            throws IOException
+    {
+        return openStream(path, new StreamOpener<FSDataInputStream>()
+        {
+            @Override
+            public FSDataInputStream open(StreamReference reference)
+                    throws IOException
+            {
+                long start = System.nanoTime();
+                FSDataInputStream stream = opener.open();
+                if (blockCacheEnabled || tailCacheEnabled || parallelReadEnabled) {
+                    stream = openFileStatusStream(path, bufferSize, stream, status, length);
+                }
+                else if (readAheadEnabled) {
+                    stream = new FSDataInputStream(new ReadAheadInputStream(stream, readAheadBufferSize, readAheadDepth));
+                }
+                if (streamStatisticsEnabled) {
+                    stream = new FSDataInputStream(new InstrumentedInputStream(stream, new StreamStatistics(path, start), streamStatisticsListener));
+                }
+                return new InputStreamWrapper(stream, PrestoFilterFileSystemWrapper.this, reference, vectoredReadCoalescer);
+            }
+        });
+    }
+
+    FileSystemReferenceCounter getReferenceCounter()
+    {
+        return referenceCounter;
+    }
+
+    private FSDataOutputStream createOutputStreamWrapper(Path path, FSDataOutputStream stream, StreamReference reference)
+            throws IOException
+    {
+        long startPosition = stream.getPos();
+        if (writeBehindEnabled) {
+            stream = new FSDataOutputStream(new WriteBehindOutputStream(stream, writeBehindBufferSize, writeBehindDepth), null, startPosition);
+        }
+        if (!streamStatisticsEnabled) {
+            return new OutputStreamWrapper(stream, startPosition, this, reference);
+        }
+        InstrumentedOutputStream instrumented = new InstrumentedOutputStream(stream, new StreamStatistics(path, System.nanoTime()), streamStatisticsListener);
+        return new OutputStreamWrapper(instrumented, startPosition, this, reference);
+    }
+
+    private static StreamStatisticsListener createStreamStatisticsListener(Configuration conf)
+    {
+        Class<? extends StreamStatisticsListener> listenerClass = conf.getClass(StreamStatistics.STREAM_STATISTICS_LISTENER_KEY, null, StreamStatisticsListener.class);
+        if (listenerClass == null) {
+            return null;
+        }
+        return ReflectionUtils.newInstance(listenerClass, conf);
+    }
+
+    /**
+     * Adds the layers that depend on the status of the file. Chunks fetched by parallel
+     * reads come from additional streams of the raw file system, so they bypass the caches.
+     * The status is only requested from the raw file system when the caller did not give it,
+     * and the caches need it or the caller did not give the length either.
+     */
+    private FSDataInputStream openFileStatusStream(Path path, int bufferSize, FSDataInputStream stream, FileStatus status, long length)
+            throws IOException
+    {
+        try {
+            // the status identifies the version of the file in the caches
+            if (status == null && (blockCacheEnabled || tailCacheEnabled || length < 0)) {
+                status = getRawFileSystem().getFileStatus(path);
+            }
+            if (status != null) {
+                length = status.getLen();
+            }
+            Configuration conf = getRawFileSystem().getConf();
+            if (blockCacheEnabled) {
+                stream = new FSDataInputStream(new CachingInputStream(stream, LocalBlockCache.getInstance(conf), status));
+            }
+            if (tailCacheEnabled) {
+                stream = new FSDataInputStream(new TailCachingInputStream(stream, FileTailCache.getInstance(conf), status));
+            }
+            if (parallelReadEnabled && length >= parallelReadMinFileSize) {
+                ParallelRangeReader rangeReader = new ParallelRangeReader(getRawFileSystem(), path, bufferSize, parallelReadStreams);
+                stream = new FSDataInputStream(new ReadAheadInputStream(stream, rangeReader, parallelReadChunkSize, parallelReadStreams));
+            }
+            else if (readAheadEnabled) {
+                stream = new FSDataInputStream(new ReadAheadInputStream(stream, readAheadBufferSize, readAheadDepth));
+            }
+            return stream;
+        }
+        catch (IOException | RuntimeException e) {
+            stream.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a stream that holds a reference to the underlying file system until it is closed.
+     */
+    private <T> T openStream(Path path, StreamOpener<T> opener)
+            throws IOException
+    {
+        final StreamReference reference = referenceCounter.retainStream();
+        T stream;
+        try {
+            stream = opener.open(reference);
+        }
+        catch (IOException | RuntimeException e) {
+            reference.release();
+            throw e;
+        }
+
+        // every stream releases its reference when it is collected without being closed,
+        // but only the sampled streams record where they were opened
+        final CreationSite creationSite = LeakDetector.sample(leakDetectionSampleRate, path.toString());
+        FinalizerService.getInstance().addFinalizer(stream, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (reference.release()) {
+                    LeakDetector.reportStreamLeak(creationSite);
+                }
+            }
+        });
+        return stream;
+    }
+
+    private interface RawInputStreamOpener
+    {
+        FSDataInputStream open()
+                throws IOException;
+    }
+
+    private interface StreamOpener<T>
+    {
+        T open(StreamReference reference)
+                throws IOException;
     }
 }
@@ -0,0 +1,614 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.hadoop.conf.Configuration;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntFunction;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Throwables.throwIfUnchecked;
+import static com.google.common.util.concurrent.Uninterruptibles.awaitUninterruptibly;
+import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.apache.hadoop.fs.StreamCapabilities.VECTOREDIO;
+
+/**
+ * Stream that fetches the next buffers of a sequential scan in the background,
+ * so that the latency of the underlying file system overlaps with the processing
+ * of the data already read.
+ * <p>
+ * At most {@code depth} buffers of {@code bufferSize} bytes are fetched ahead of
+ * the current position, using positioned reads of the underlying stream, or the
+ * {@link RangeReader} given to the constructor. A seek
+ * within the fetched data is free; any other seek restarts the read-ahead at the
+ * new position. After {@value #MAX_RANDOM_SEEKS} consecutive such seeks, without a
+ * sequential read past the end of a buffer in between, the access pattern is
+ * considered random, and the stream reads directly from the underlying stream
+ * for the rest of its life. Positioned reads always bypass the read-ahead.
+ * <p>
+ * The buffers of all streams are fetched by a shared pool of
+ * {@value #READ_AHEAD_THREADS} threads. When its queue is full, the reading
+ * thread fetches the buffer itself.
+ * <p>
+ * Read-ahead is disabled by default, and is configured for each scheme:
+ * {@code fs.<scheme>.read-ahead.enabled}, {@code fs.<scheme>.read-ahead.buffer-size}
+ * and {@code fs.<scheme>.read-ahead.depth}. The scheme specific properties default
+ * to {@value #READ_AHEAD_ENABLED_KEY}, {@value #READ_AHEAD_BUFFER_SIZE_KEY} and
+ * {@value #READ_AHEAD_DEPTH_KEY}.
+ */
+public class ReadAheadInputStream
+        extends FSInputStream
+        implements StreamCapabilities
+{
+    public static final String READ_AHEAD_ENABLED_KEY = "fs.read-ahead.enabled";
+    public static final String READ_AHEAD_BUFFER_SIZE_KEY = "fs.read-ahead.buffer-size";
+    public static final String READ_AHEAD_DEPTH_KEY = "fs.read-ahead.depth";
+
+    private static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+    private static final int DEFAULT_DEPTH = 2;
+    private static final int MAX_RANDOM_SEEKS = 3;
+    private static final int READ_AHEAD_THREADS = 64;
+    private static final int MAX_QUEUED_FETCHES = 1000;
+
+    private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            READ_AHEAD_THREADS,
+            READ_AHEAD_THREADS,
+            60,
+            SECONDS,
+            new ArrayBlockingQueue<Runnable>(MAX_QUEUED_FETCHES),
+            new ThreadFactoryBuilder().setNameFormat("hadoop-read-ahead-%s").setDaemon(true).build(),
+            new ThreadPoolExecutor.CallerRunsPolicy());
+
+    static {
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    private final FSDataInputStream in;
+    private final RangeReader rangeReader;
+    private final int bufferSize;
+    private final int depth;
+
+    // buffers fetched or being fetched after the current buffer, in file order
+    private final Deque<Fetch> pending = new ArrayDeque<>();
+    // fetches cancelled by a seek that may still be reading from the underlying stream
+    private final List<Fetch> cancelled = new ArrayList<>();
+    // data arrays of the buffers that have been read, reused by the next fetches
+    private final Queue<byte[]> freeBuffers = new ConcurrentLinkedQueue<>();
+    private final byte[] singleByte = new byte[1];
+    // position of the first byte after the last pending buffer
+    private long nextFetchPosition;
+    private Buffer current;
+    private long position;
+    private int randomSeeks;
+    private boolean readAheadEnabled = true;
+    private boolean closed;
+
+    /**
+     * @param in newly opened stream, positioned at the start of the file
+     */
+    public ReadAheadInputStream(final FSDataInputStream in, int bufferSize, int depth)
+    {
+        this(in, new RangeReader()
+        {
+            @Override
+            public int read(long position, byte[] buffer, int offset, int length)
+                    throws IOException
+            {
+                return in.read(position, buffer, offset, length);
+            }
+
+            @Override
+            public void close()
+            {
+                // the stream is closed by the read-ahead stream
+            }
+        }, bufferSize, depth);
+    }
+
+    /**
+     * @param in newly opened stream, positioned at the start of the file, used for reads that bypass the read-ahead
+     * @param rangeReader reader of the buffers fetched ahead, closed with this stream
+     */
+    ReadAheadInputStream(FSDataInputStream in, RangeReader rangeReader, int bufferSize, int depth)
+    {
+        checkArgument(bufferSize > 0, "bufferSize must be positive");
+        checkArgument(depth > 0, "depth must be positive");
+        this.in = requireNonNull(in, "in is null");
+        this.rangeReader = requireNonNull(rangeReader, "rangeReader is null");
+        this.bufferSize = bufferSize;
+        this.depth = depth;
+    }
+
+    static boolean isEnabled(Configuration conf, String scheme)
+    {
+        return SchemeConfiguration.getBoolean(conf, scheme, READ_AHEAD_ENABLED_KEY, false);
+    }
+
+    static int getBufferSize(Configuration conf, String scheme)
+    {
+        return SchemeConfiguration.getInt(conf, scheme, READ_AHEAD_BUFFER_SIZE_KEY, DEFAULT_BUFFER_SIZE);
+    }
+
+    static int getDepth(Configuration conf, String scheme)
+    {
+        return SchemeConfiguration.getInt(conf, scheme, READ_AHEAD_DEPTH_KEY, DEFAULT_DEPTH);
+    }
+
+    public synchronized boolean isReadAheadEnabled()
+    {
+        return readAheadEnabled;
+    }
+
+    @Override
+    public synchronized int read()
+            throws IOException
+    {
+        if (readAheadEnabled && current != null && current.contains(position)) {
+            checkOpen();
+            return current.get(position++);
+        }
+        int read = read(singleByte, 0, 1);
+        if (read <= 0) {
+            return -1;
+        }
+        return singleByte[0] & 0xFF;
+    }
+
+    @Override
+    public synchronized int read(byte[] buffer, int offset, int length)
+            throws IOException
+    {
+        checkOpen();
+        if (length == 0) {
+            return 0;
+        }
+        if (!readAheadEnabled) {
+            in.seek(position);
+            int read = in.read(buffer, offset, length);
+            if (read > 0) {
+                position += read;
+            }
+            return read;
+        }
+
+        int total = 0;
+        while (total < length) {
+            if (current == null || !current.contains(position)) {
+                if (current != null && position == current.getEnd()) {
+                    // the scan is sequential again
+                    randomSeeks = 0;
+                }
+                recycle(current);
+                current = null;
+                try {
+                    current = nextBuffer();
+                }
+                catch (IOException e) {
+                    if (total > 0) {
+                        // return the data already copied, the next read fails again or retries the fetch
+                        return total;
+                    }
+                    throw e;
+                }
+                if (current == null) {
+                    break;
+                }
+            }
+            int read = current.read(position, buffer, offset + total, length - total);
+            position += read;
+            total += read;
+            if (!current.contains(position) && (current.isEndOfFile() || !isNextBufferReady())) {
+                // return the data read so far instead of waiting for the next buffer
+                break;
+            }
+        }
+        return total == 0 ? -1 : total;
+    }
+
+    @Override
+    public synchronized void seek(long targetPosition)
+            throws IOException
+    {
+        checkOpen();
+        if (targetPosition < 0) {
+            throw new EOFException("Cannot seek to negative position " + targetPosition);
+        }
+        if (targetPosition == position || !readAheadEnabled) {
+            position = targetPosition;
+            return;
+        }
+        if ((current != null && current.contains(targetPosition)) ||
+                (targetPosition >= position && targetPosition < nextFetchPosition)) {
+            // short skip within the fetched data, buffers before the target are dropped when read
+            position = targetPosition;
+            return;
+        }
+
+        cancelPending();
+        recycle(current);
+        current = null;
+        position = targetPosition;
+        nextFetchPosition = targetPosition;
+        randomSeeks++;
+        if (randomSeeks >= MAX_RANDOM_SEEKS) {
+            readAheadEnabled = false;
+        }
+    }
+
+    @Override
+    public synchronized long getPos()
+    {
+        return position;
+    }
+
+    @Override
+    public boolean seekToNewSource(long targetPosition)
+    {
+        return false;
+    }
+
+    @Override
+    public synchronized int available()
+            throws IOException
+    {
+        checkOpen();
+        if (current != null && current.contains(position)) {
+            return current.remaining(position);
+        }
+        return 0;
+    }
+
+    @Override
+    public int read(long position, byte[] buffer, int offset, int length)
+            throws IOException
+    {
+        return in.read(position, buffer, offset, length);
+    }
+
+    @Override
+    public void readFully(long position, byte[] buffer, int offset, int length)
+            throws IOException
+    {
+        in.readFully(position, buffer, offset, length);
+    }
+
+    @Override
+    public void readFully(long position, byte[] buffer)
+            throws IOException
+    {
+        in.readFully(position, buffer);
+    }
+
+    @Override
+    public int minSeekForVectorReads()
+    {
+        return in.minSeekForVectorReads();
+    }
+
+    @Override
+    public int maxReadSizeForVectorReads()
+    {
+        return in.maxReadSizeForVectorReads();
+    }
+
+    @Override
+    public void readVectored(List<? extends FileRange> ranges, IntFunction<ByteBuffer> allocate)
+            throws IOException
+    {
+        in.readVectored(ranges, allocate);
+    }
+
+    @Override
+    public boolean hasCapability(String capability)
+    {
+        // vectored reads are positioned reads, which bypass the read-ahead
+        return VECTOREDIO.equalsIgnoreCase(capability) && in.hasCapability(capability);
+    }
+
+    @Override
+    public synchronized void close()
+            throws IOException
+    {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        cancelPending();
+        current = null;
+        // the fetches must not read from the underlying stream after it is closed
+        for (Fetch fetch : cancelled) {
+            fetch.awaitFinished();
+        }
+        cancelled.clear();
+        try {
+            rangeReader.close();
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return the buffer containing the current position, or null at the end of the file
+     */
+    private Buffer nextBuffer()
+            throws IOException
+    {
+        while (true) {
+            if (pending.isEmpty()) {
+                nextFetchPosition = position;
+            }
+            fillPending();
+            Fetch fetch = pending.poll();
+            Buffer buffer = null;
+            try {
+                buffer = await(fetch.getFuture());
+            }
+            finally {
+                if (buffer == null) {
+                    // the next read starts over at the current position, instead of dropping the
+                    // buffers after the failed one as skipped, which would truncate the file
+                    cancelPending();
+                    nextFetchPosition = position;
+                }
+            }
+            if (buffer.contains(position)) {
+                fillPending();
+                return buffer;
+            }
+            recycle(buffer);
+            if (buffer.getStart() > position) {
+                // data before this buffer was never fetched
+                cancelPending();
+                nextFetchPosition = position;
+                continue;
+            }
+            if (buffer.isEndOfFile()) {
+                cancelPending();
+                nextFetchPosition = position;
+                return null;
+            }
+            // the position was skipped past this buffer
+        }
+    }
+
+    private boolean isNextBufferReady()
+    {
+        Fetch next = pending.peek();
+        return next != null && next.getFuture().isDone();
+    }
+
+    private void fillPending()
+    {
+        while (pending.size() < depth) {
+            pending.add(new Fetch(nextFetchPosition));
+            nextFetchPosition += bufferSize;
+        }
+    }
+
+    private Buffer fetch(long fetchPosition)
+            throws IOException
+    {
+        byte[] data = freeBuffers.poll();
+        if (data == null) {
+            data = new byte[bufferSize];
+        }
+        int length = 0;
+        while (length < bufferSize) {
+            int read = rangeReader.read(fetchPosition + length, data, length, bufferSize - length);
+            if (read < 0) {
+                return new Buffer(fetchPosition, data, length, true);
+            }
+            length += read;
+        }
+        return new Buffer(fetchPosition, data, length, false);
+    }
+
+    private void recycle(Buffer buffer)
+    {
+        // at most depth + 1 buffers are in use, so the free list is bounded as well
+        if (buffer != null) {
+            freeBuffers.add(buffer.getData());
+        }
+    }
+
+    private static Buffer await(Future<Buffer> future)
+            throws IOException
+    {
+        try {
+            return future.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for read-ahead");
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throwIfUnchecked(cause);
+            throw new IOException(cause);
+        }
+    }
+
+    private void cancelPending()
+    {
+        // running fetches are not interrupted, since interrupting a read may close the underlying stream
+        for (Fetch fetch : pending) {
+            fetch.cancel();
+            if (!fetch.isFinished()) {
+                cancelled.add(fetch);
+            }
+        }
+        pending.clear();
+        cancelled.removeIf(Fetch::isFinished);
+    }
+
+    private void checkOpen()
+            throws IOException
+    {
+        if (closed) {
+            throw new IOException("Stream is closed");
+        }
+    }
+
+    /**
+     * Fetch of a buffer on the shared executor.
+     */
+    private final class Fetch
+            implements Callable<Buffer>
+    {
+        private final long position;
+        // set by the fetch when it starts, or by cancel when the fetch has not started yet
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private final CountDownLatch finished = new CountDownLatch(1);
+        private final Future<Buffer> future;
+
+        public Fetch(long position)
+        {
+            this.position = position;
+            this.future = executor.submit(this);
+        }
+
+        @Override
+        public Buffer call()
+                throws IOException
+        {
+            if (!claimed.compareAndSet(false, true)) {
+                return null;
+            }
+            try {
+                return fetch(position);
+            }
+            finally {
+                finished.countDown();
+            }
+        }
+
+        public Future<Buffer> getFuture()
+        {
+            return future;
+        }
+
+        public void cancel()
+        {
+            future.cancel(false);
+            if (claimed.compareAndSet(false, true)) {
+                finished.countDown();
+            }
+        }
+
+        public boolean isFinished()
+        {
+            return finished.getCount() == 0;
+        }
+
+        public void awaitFinished()
+        {
+            awaitUninterruptibly(finished);
+        }
+    }
+
+    /**
+     * Reads the buffers fetched ahead. Reads of different buffers are called concurrently.
+     */
+    interface RangeReader
+            extends Closeable
+    {
+        /**
+         * @return the number of bytes read, or -1 at the end of the file
+         */
+        int read(long position, byte[] buffer, int offset, int length)
+                throws IOException;
+    }
+
+    private static final class Buffer
+    {
+        private final long start;
+        private final byte[] data;
+        private final int length;
+        private final boolean endOfFile;
+
+        private Buffer(long start, byte[] data, int length, boolean endOfFile)
+        {
+            this.start = start;
+            this.data = data;
+            this.length = length;
+            this.endOfFile = endOfFile;
+        }
+
+        public boolean contains(long position)
+        {
+            return position >= start && position < start + length;
+        }
+
+        public long getStart()
+        {
+            return start;
+        }
+
+        public byte[] getData()
+        {
+            return data;
+        }
+
+        public long getEnd()
+        {
+            return start + length;
+        }
+
+        public boolean isEndOfFile()
+        {
+            return endOfFile;
+        }
+
+        public int get(long position)
+        {
+            return data[(int) (position - start)] & 0xFF;
+        }
+
+        public int remaining(long position)
+        {
+            return (int) (start + length - position);
+        }
+
+        public int read(long position, byte[] buffer, int offset, int length)
+        {
+            int read = Math.min(length, remaining(position));
+            System.arraycopy(data, (int) (position - start), buffer, offset, read);
+            return read;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Reads properties that can be set for each scheme. The scheme specific property
+ * {@code fs.<scheme>.<name>} defaults to the global property {@code fs.<name>}.
+ */
+final class SchemeConfiguration
+{
+    private SchemeConfiguration() {}
+
+    public static boolean getBoolean(Configuration conf, String scheme, String key, boolean defaultValue)
+    {
+        return conf.getBoolean(schemeKey(key, scheme), conf.getBoolean(key, defaultValue));
+    }
+
+    public static int getInt(Configuration conf, String scheme, String key, int defaultValue)
+    {
+        return conf.getInt(schemeKey(key, scheme), conf.getInt(key, defaultValue));
+    }
+
+    public static long getLong(Configuration conf, String scheme, String key, long defaultValue)
+    {
+        return conf.getLong(schemeKey(key, scheme), conf.getLong(key, defaultValue));
+    }
+
+    private static String schemeKey(String key, String scheme)
+    {
+        // fs.read-ahead.depth -> fs.s3a.read-ahead.depth
+        return "fs." + scheme + key.substring("fs".length());
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.statistics.IOStatistics;
+import org.apache.hadoop.fs.statistics.IOStatisticsSource;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+import static java.util.Objects.requireNonNull;
+import static org.apache.hadoop.fs.statistics.impl.IOStatisticsBinding.dynamicIOStatistics;
+
+/**
+ * I/O statistics of a single stream opened through {@link PrestoFilterFileSystemWrapper}.
+ * The statistics are live while the stream is open, and are also exposed as
+ * {@link IOStatistics} by the stream.
+ * <p>
+ * Instrumentation is disabled by default, and is enabled for all streams with
+ * {@value #STREAM_STATISTICS_ENABLED_KEY}. The statistics of each closed stream are
+ * then passed to the {@link StreamStatisticsListener} configured with
+ * {@value #STREAM_STATISTICS_LISTENER_KEY}, if any.
+ */
+public final class StreamStatistics
+        implements IOStatisticsSource
+{
+    public static final String STREAM_STATISTICS_ENABLED_KEY = "fs.stream-statistics.enabled";
+    public static final String STREAM_STATISTICS_LISTENER_KEY = "fs.stream-statistics.listener";
+
+    public static final String BYTES_READ = "stream_read_bytes";
+    public static final String READ_OPERATIONS = "stream_read_operations";
+    public static final String SEEK_OPERATIONS = "stream_read_seek_operations";
+    public static final String SEEK_DISTANCE = "stream_read_seek_distance";
+    public static final String TIME_TO_FIRST_BYTE_NANOS = "stream_read_time_to_first_byte_nanos";
+    public static final String BYTES_WRITTEN = "stream_write_bytes";
+    public static final String WRITE_OPERATIONS = "stream_write_operations";
+    public static final String BLOCKED_NANOS = "stream_blocked_nanos";
+
+    private static final Log log = LogFactory.getLog(StreamStatistics.class);
+
+    private final Path path;
+    private final long openNanos;
+
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong readOperations = new AtomicLong();
+    private final AtomicLong seekOperations = new AtomicLong();
+    private final AtomicLong seekDistance = new AtomicLong();
+    private final AtomicLong timeToFirstByteNanos = new AtomicLong(-1);
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong writeOperations = new AtomicLong();
+    private final AtomicLong blockedNanos = new AtomicLong();
+
+    private final IOStatistics ioStatistics;
+
+    /**
+     * @param openNanos value of {@link System#nanoTime()} when the stream was requested
+     */
+    StreamStatistics(Path path, long openNanos)
+    {
+        this.path = requireNonNull(path, "path is null");
+        this.openNanos = openNanos;
+        this.ioStatistics = dynamicIOStatistics()
+                .withAtomicLongCounter(BYTES_READ, bytesRead)
+                .withAtomicLongCounter(READ_OPERATIONS, readOperations)
+                .withAtomicLongCounter(SEEK_OPERATIONS, seekOperations)
+                .withAtomicLongCounter(SEEK_DISTANCE, seekDistance)
+                .withAtomicLongGauge(TIME_TO_FIRST_BYTE_NANOS, timeToFirstByteNanos)
+                .withAtomicLongCounter(BYTES_WRITTEN, bytesWritten)
+                .withAtomicLongCounter(WRITE_OPERATIONS, writeOperations)
+                .withAtomicLongCounter(BLOCKED_NANOS, blockedNanos)
+                .build();
+    }
+
+    static boolean isEnabled(Configuration conf)
+    {
+        return conf.getBoolean(STREAM_STATISTICS_ENABLED_KEY, false);
+    }
+
+    public Path getPath()
+    {
+        return path;
+    }
+
+    public long getBytesRead()
+    {
+        return bytesRead.get();
+    }
+
+    /**
+     * @return the number of read calls, including positioned reads
+     */
+    public long getReadOperations()
+    {
+        return readOperations.get();
+    }
+
+    public long getSeekOperations()
+    {
+        return seekOperations.get();
+    }
+
+    /**
+     * @return the total number of bytes skipped forward or backward by seeks
+     */
+    public long getSeekDistance()
+    {
+        return seekDistance.get();
+    }
+
+    /**
+     * @return the time from the open call to the end of the first read that returned data,
+     * or -1 if no data has been read
+     */
+    public long getTimeToFirstByteNanos()
+    {
+        return timeToFirstByteNanos.get();
+    }
+
+    public long getBytesWritten()
+    {
+        return bytesWritten.get();
+    }
+
+    public long getWriteOperations()
+    {
+        return writeOperations.get();
+    }
+
+    /**
+     * @return the time spent in read, write, flush and close calls of the stream
+     */
+    public long getBlockedNanos()
+    {
+        return blockedNanos.get();
+    }
+
+    @Override
+    public IOStatistics getIOStatistics()
+    {
+        return ioStatistics;
+    }
+
+    static void streamClosed(StreamStatisticsListener listener, StreamStatistics statistics)
+    {
+        if (listener == null) {
+            return;
+        }
+        try {
+            listener.streamClosed(statistics);
+        }
+        catch (RuntimeException e) {
+            log.error("Error notifying stream statistics listener", e);
+        }
+    }
+
+    void recordRead(int bytes, long nanos)
+    {
+        readOperations.incrementAndGet();
+        blockedNanos.addAndGet(nanos);
+        if (bytes > 0) {
+            bytesRead.addAndGet(bytes);
+            if (timeToFirstByteNanos.get() < 0) {
+                timeToFirstByteNanos.compareAndSet(-1, System.nanoTime() - openNanos);
+            }
+        }
+    }
+
+    void recordSeek(long distance)
+    {
+        seekOperations.incrementAndGet();
+        seekDistance.addAndGet(Math.abs(distance));
+    }
+
+    void recordWrite(int bytes, long nanos)
+    {
+        writeOperations.incrementAndGet();
+        bytesWritten.addAndGet(bytes);
+        blockedNanos.addAndGet(nanos);
+    }
+
+    void recordBlocked(long nanos)
+    {
+        blockedNanos.addAndGet(nanos);
+    }
+
+    @Override
+    public String toString()
+    {
+        return toStringHelper(this)
+                .add("path", path)
+                .add("bytesRead", getBytesRead())
+                .add("readOperations", getReadOperations())
+                .add("seekOperations", getSeekOperations())
+                .add("seekDistance", getSeekDistance())
+                .add("timeToFirstByteNanos", getTimeToFirstByteNanos())
+                .add("bytesWritten", getBytesWritten())
+                .add("writeOperations", getWriteOperations())
+                .add("blockedNanos", getBlockedNanos())
+                .toString();
+    }
+}
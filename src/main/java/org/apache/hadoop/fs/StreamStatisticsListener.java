@@ -0,0 +1,25 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs;
+
+/**
+ * Receives the statistics of instrumented streams. Implementations are configured
+ * with {@value StreamStatistics#STREAM_STATISTICS_LISTENER_KEY}, must have a public
+ * no-argument constructor, and may implement {@link org.apache.hadoop.conf.Configurable}.
+ * The listener is called on the thread closing the stream, so it must not block.
+ */
+public interface StreamStatisticsListener
+{
+    void streamClosed(StreamStatistics statistics);
+}
@@ -0,0 +1,191 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Stream that serves reads of the tail of the file from a {@link FileTailCache}.
+ * The first read in the tail region loads the whole tail, and the other reads are
+ * passed to the underlying stream.
+ */
+class TailCachingInputStream
+        extends FSInputStream
+{
+    private final FSDataInputStream in;
+    private final FileTailCache cache;
+    private final String path;
+    private final long length;
+    private final long modificationTime;
+    private final long tailStart;
+    private final byte[] singleByte = new byte[1];
+
+    private byte[] tail;
+    private long position;
+    private boolean closed;
+
+    public TailCachingInputStream(FSDataInputStream in, FileTailCache cache, FileStatus status)
+    {
+        this.in = requireNonNull(in, "in is null");
+        this.cache = requireNonNull(cache, "cache is null");
+        requireNonNull(status, "status is null");
+        this.path = status.getPath().toString();
+        this.length = status.getLen();
+        this.modificationTime = status.getModificationTime();
+        this.tailStart = Math.max(0, length - cache.getTailSize());
+    }
+
+    @Override
+    public synchronized int read()
+            throws IOException
+    {
+        int read = read(singleByte, 0, 1);
+        if (read <= 0) {
+            return -1;
+        }
+        return singleByte[0] & 0xFF;
+    }
+
+    @Override
+    public synchronized int read(byte[] buffer, int offset, int length)
+            throws IOException
+    {
+        checkOpen();
+        int read;
+        if (position >= tailStart) {
+            read = readTail(position, buffer, offset, length);
+        }
+        else {
+            if (in.getPos() != position) {
+                in.seek(position);
+            }
+            // do not read past the start of the tail, so that the rest is served from the tail
+            read = in.read(buffer, offset, (int) Math.min(length, tailStart - position));
+        }
+        if (read > 0) {
+            position += read;
+        }
+        return read;
+    }
+
+    @Override
+    public int read(long position, byte[] buffer, int offset, int length)
+            throws IOException
+    {
+        checkOpen();
+        if (position >= tailStart) {
+            return readTail(position, buffer, offset, length);
+        }
+        return in.read(position, buffer, offset, length);
+    }
+
+    @Override
+    public void readFully(long position, byte[] buffer, int offset, int length)
+            throws IOException
+    {
+        checkOpen();
+        if (position < tailStart) {
+            // a read that overlaps the tail is passed to the underlying stream as a whole
+            in.readFully(position, buffer, offset, length);
+            return;
+        }
+        if (position + length > this.length) {
+            throw new EOFException("Reached the end of stream with " + (position + length - this.length) + " bytes left to read");
+        }
+        readTail(position, buffer, offset, length);
+    }
+
+    @Override
+    public synchronized void seek(long targetPosition)
+            throws IOException
+    {
+        checkOpen();
+        if (targetPosition < 0) {
+            throw new EOFException("Cannot seek to negative position " + targetPosition);
+        }
+        position = targetPosition;
+    }
+
+    @Override
+    public synchronized long getPos()
+    {
+        return position;
+    }
+
+    @Override
+    public boolean seekToNewSource(long targetPosition)
+    {
+        return false;
+    }
+
+    @Override
+    public synchronized int available()
+            throws IOException
+    {
+        checkOpen();
+        if (position >= tailStart) {
+            return (int) Math.max(0, length - position);
+        }
+        return in.available();
+    }
+
+    @Override
+    public synchronized void close()
+            throws IOException
+    {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        in.close();
+    }
+
+    private int readTail(long position, byte[] buffer, int offset, int length)
+            throws IOException
+    {
+        if (position >= this.length) {
+            return length == 0 ? 0 : -1;
+        }
+        byte[] tail = getTail();
+        int read = (int) Math.min(length, this.length - position);
+        System.arraycopy(tail, (int) (position - tailStart), buffer, offset, read);
+        return read;
+    }
+
+    private synchronized byte[] getTail()
+            throws IOException
+    {
+        if (tail == null) {
+            tail = cache.get(path, length, modificationTime);
+        }
+        if (tail == null) {
+            byte[] data = new byte[(int) (length - tailStart)];
+            in.readFully(tailStart, data, 0, data.length);
+            cache.put(path, length, modificationTime, data);
+            tail = data;
+        }
+        return tail;
+    }
+
+    private void checkOpen()
+            throws IOException
+    {
+        if (closed) {
+            throw new IOException("Stream is closed");
+        }
+    }
+}
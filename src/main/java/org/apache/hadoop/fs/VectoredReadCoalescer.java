@@ -0,0 +1,159 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.impl.CombinedFileRange;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.function.IntFunction;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.apache.hadoop.fs.VectoredReadUtils.mergeSortedRanges;
+import static org.apache.hadoop.fs.VectoredReadUtils.readInDirectBuffer;
+import static org.apache.hadoop.fs.VectoredReadUtils.sliceTo;
+import static org.apache.hadoop.fs.VectoredReadUtils.validateAndSortRanges;
+
+/**
+ * Vectored reads for streams without a native implementation. The requested ranges
+ * are sorted, ranges separated by less than {@code minSeek} bytes are merged into a
+ * single read of at most {@code maxMergedSize} bytes, and the merged reads are issued
+ * in parallel as positioned reads, on a shared pool of {@value #READ_THREADS} threads.
+ * Each merged read is read into a single buffer of the caller's allocator, and the
+ * data of each requested range is a slice of that buffer.
+ * <p>
+ * Configured for each scheme with {@code fs.<scheme>.vectored-read.min-seek-size} and
+ * {@code fs.<scheme>.vectored-read.max-merged-size}, which fall back to
+ * {@value #MIN_SEEK_SIZE_KEY} and {@value #MAX_MERGED_SIZE_KEY}, and default to
+ * {@value #DEFAULT_MIN_SEEK_SIZE} and {@value #DEFAULT_MAX_MERGED_SIZE} bytes.
+ */
+final class VectoredReadCoalescer
+{
+    public static final String MIN_SEEK_SIZE_KEY = "fs.vectored-read.min-seek-size";
+    public static final String MAX_MERGED_SIZE_KEY = "fs.vectored-read.max-merged-size";
+
+    private static final int DEFAULT_MIN_SEEK_SIZE = 128 * 1024;
+    private static final int DEFAULT_MAX_MERGED_SIZE = 8 * 1024 * 1024;
+
+    private static final int READ_THREADS = 32;
+    private static final int MAX_QUEUED_READS = 1000;
+
+    // when the queue is full, the merged read runs on the calling thread
+    private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            READ_THREADS,
+            READ_THREADS,
+            60,
+            SECONDS,
+            new ArrayBlockingQueue<Runnable>(MAX_QUEUED_READS),
+            new ThreadFactoryBuilder().setNameFormat("hadoop-vectored-read-%s").setDaemon(true).build(),
+            new ThreadPoolExecutor.CallerRunsPolicy());
+
+    static {
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    private final int minSeekSize;
+    private final int maxMergedSize;
+
+    public VectoredReadCoalescer(int minSeekSize, int maxMergedSize)
+    {
+        checkArgument(minSeekSize >= 0, "minSeekSize is negative");
+        checkArgument(maxMergedSize > 0, "maxMergedSize must be positive");
+        this.minSeekSize = minSeekSize;
+        this.maxMergedSize = maxMergedSize;
+    }
+
+    public static VectoredReadCoalescer create(Configuration conf, String scheme)
+    {
+        return new VectoredReadCoalescer(
+                SchemeConfiguration.getInt(conf, scheme, MIN_SEEK_SIZE_KEY, DEFAULT_MIN_SEEK_SIZE),
+                SchemeConfiguration.getInt(conf, scheme, MAX_MERGED_SIZE_KEY, DEFAULT_MAX_MERGED_SIZE));
+    }
+
+    public int getMinSeekSize()
+    {
+        return minSeekSize;
+    }
+
+    public int getMaxMergedSize()
+    {
+        return maxMergedSize;
+    }
+
+    /**
+     * Starts reading the ranges from the stream. The data future of each range is
+     * set before this method returns, and completed when its merged read finishes.
+     */
+    public void readVectored(final PositionedReadable stream, List<? extends FileRange> ranges, final IntFunction<ByteBuffer> allocate)
+            throws IOException
+    {
+        requireNonNull(stream, "stream is null");
+        requireNonNull(allocate, "allocate is null");
+        List<? extends FileRange> sortedRanges = validateAndSortRanges(ranges, Optional.empty());
+        for (FileRange range : sortedRanges) {
+            range.setData(new CompletableFuture<>());
+        }
+
+        for (final CombinedFileRange mergedRange : mergeSortedRanges(sortedRanges, 1, minSeekSize, maxMergedSize)) {
+            executor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    readMergedRange(stream, mergedRange, allocate);
+                }
+            });
+        }
+    }
+
+    private static void readMergedRange(PositionedReadable stream, CombinedFileRange mergedRange, IntFunction<ByteBuffer> allocate)
+    {
+        ByteBuffer data;
+        try {
+            data = allocate.apply(mergedRange.getLength());
+            if (data.hasArray()) {
+                stream.readFully(mergedRange.getOffset(), data.array(), data.arrayOffset() + data.position(), mergedRange.getLength());
+                data.limit(data.position() + mergedRange.getLength());
+            }
+            else {
+                // direct buffers are filled through a small temporary array
+                readInDirectBuffer(mergedRange, data, (position, buffer, offset, length) -> {
+                    stream.readFully(position, buffer, offset, length);
+                    return null;
+                });
+                data.flip();
+            }
+        }
+        catch (Throwable e) {
+            // any failure must complete the futures, or the caller waits forever
+            for (FileRange range : mergedRange.getUnderlying()) {
+                range.getData().completeExceptionally(e);
+            }
+            return;
+        }
+
+        for (FileRange range : mergedRange.getUnderlying()) {
+            range.getData().complete(sliceTo(data, mergedRange.getOffset(), range));
+        }
+    }
+}
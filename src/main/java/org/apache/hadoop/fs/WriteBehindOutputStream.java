@@ -0,0 +1,439 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.hadoop.conf.Configuration;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.util.concurrent.Uninterruptibles.getUninterruptibly;
+import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Stream that copies writes into buffers, and writes full buffers to the underlying
+ * stream in the background, so that the writer does not block on each upload.
+ * <p>
+ * Each stream uses at most {@code depth + 1} buffers of {@code bufferSize} bytes:
+ * the one being filled, and up to {@code depth} being written. The writer blocks when
+ * all buffers are in use. Buffers are written in order, one at a time. An error of the
+ * underlying stream fails the next write, and is reported by {@link #hflush()},
+ * {@link #hsync()} and {@link #close()}, which wait for all the buffers to be written.
+ * {@link #flush()} does not wait, since writers call it often.
+ * <p>
+ * The buffers of all streams come from a shared pool of at most
+ * {@value #MAX_BUFFER_MEMORY} bytes, and are written by a shared pool of
+ * {@value #WRITE_BEHIND_THREADS} threads. When the memory of the pool is in use by
+ * other streams, and the stream has no buffer of its own, it writes directly to the
+ * underlying stream. The buffers are heap arrays rather than direct buffers, since
+ * the underlying stream only accepts arrays. When the queue of the threads is full,
+ * the thread submitting the buffer writes it itself.
+ * <p>
+ * The methods of the stream are synchronized, so that {@link #abort()} can be called
+ * from another thread while the stream is being written.
+ * <p>
+ * Write-behind is disabled by default, and is configured for each scheme:
+ * {@code fs.<scheme>.write-behind.enabled}, {@code fs.<scheme>.write-behind.buffer-size}
+ * and {@code fs.<scheme>.write-behind.depth}. The scheme specific properties default
+ * to {@value #WRITE_BEHIND_ENABLED_KEY}, {@value #WRITE_BEHIND_BUFFER_SIZE_KEY} and
+ * {@value #WRITE_BEHIND_DEPTH_KEY}.
+ */
+class WriteBehindOutputStream
+        extends OutputStream
+        implements Syncable, StreamCapabilities, Abortable
+{
+    public static final String WRITE_BEHIND_ENABLED_KEY = "fs.write-behind.enabled";
+    public static final String WRITE_BEHIND_BUFFER_SIZE_KEY = "fs.write-behind.buffer-size";
+    public static final String WRITE_BEHIND_DEPTH_KEY = "fs.write-behind.depth";
+
+    private static final int DEFAULT_BUFFER_SIZE = 4 * 1024 * 1024;
+    private static final int DEFAULT_DEPTH = 2;
+    private static final long MAX_BUFFER_MEMORY = 256 * 1024 * 1024;
+    private static final int WRITE_BEHIND_THREADS = 32;
+    private static final int MAX_QUEUED_WRITES = 1000;
+
+    private static final BufferPool sharedBufferPool = new BufferPool(MAX_BUFFER_MEMORY);
+
+    private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            WRITE_BEHIND_THREADS,
+            WRITE_BEHIND_THREADS,
+            60,
+            SECONDS,
+            new ArrayBlockingQueue<Runnable>(MAX_QUEUED_WRITES),
+            new ThreadFactoryBuilder().setNameFormat("hadoop-write-behind-%s").setDaemon(true).build(),
+            new ThreadPoolExecutor.CallerRunsPolicy());
+
+    static {
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    private final FSDataOutputStream out;
+    private final BufferPool bufferPool;
+    private final int bufferSize;
+    private final int maxBuffers;
+    // buffers written by the background task, ready to be filled again
+    private final BlockingQueue<byte[]> freeBuffers;
+    private int allocatedBuffers;
+
+    private byte[] buffer;
+    private int bufferPosition;
+    // completes when all the submitted buffers have been written
+    private CompletableFuture<Void> pendingWrites = completedFuture(null);
+    private volatile Throwable failure;
+    // set by abort, so that the buffers not written yet are dropped
+    private volatile boolean aborted;
+    private boolean closed;
+
+    public WriteBehindOutputStream(FSDataOutputStream out, int bufferSize, int depth)
+    {
+        this(out, bufferSize, depth, sharedBufferPool);
+    }
+
+    WriteBehindOutputStream(FSDataOutputStream out, int bufferSize, int depth, BufferPool bufferPool)
+    {
+        checkArgument(bufferSize > 0, "bufferSize must be positive");
+        checkArgument(depth > 0, "depth must be positive");
+        this.out = requireNonNull(out, "out is null");
+        this.bufferPool = requireNonNull(bufferPool, "bufferPool is null");
+        this.bufferSize = bufferSize;
+        this.maxBuffers = depth + 1;
+        this.freeBuffers = new ArrayBlockingQueue<>(maxBuffers);
+    }
+
+    static boolean isEnabled(Configuration conf, String scheme)
+    {
+        return SchemeConfiguration.getBoolean(conf, scheme, WRITE_BEHIND_ENABLED_KEY, false);
+    }
+
+    static int getBufferSize(Configuration conf, String scheme)
+    {
+        return SchemeConfiguration.getInt(conf, scheme, WRITE_BEHIND_BUFFER_SIZE_KEY, DEFAULT_BUFFER_SIZE);
+    }
+
+    static int getDepth(Configuration conf, String scheme)
+    {
+        return SchemeConfiguration.getInt(conf, scheme, WRITE_BEHIND_DEPTH_KEY, DEFAULT_DEPTH);
+    }
+
+    @Override
+    public synchronized void write(int value)
+            throws IOException
+    {
+        checkOpen();
+        if (buffer == null) {
+            buffer = takeBuffer();
+            if (buffer == null) {
+                out.write(value);
+                return;
+            }
+        }
+        buffer[bufferPosition++] = (byte) value;
+        if (bufferPosition == bufferSize) {
+            submitBuffer();
+        }
+    }
+
+    @Override
+    public synchronized void write(byte[] data, int offset, int length)
+            throws IOException
+    {
+        checkOpen();
+        while (length > 0) {
+            if (buffer == null) {
+                buffer = takeBuffer();
+                if (buffer == null) {
+                    out.write(data, offset, length);
+                    return;
+                }
+            }
+            int chunk = Math.min(length, bufferSize - bufferPosition);
+            System.arraycopy(data, offset, buffer, bufferPosition, chunk);
+            bufferPosition += chunk;
+            offset += chunk;
+            length -= chunk;
+            if (bufferPosition == bufferSize) {
+                submitBuffer();
+            }
+        }
+    }
+
+    @Override
+    public void flush()
+    {
+        // the data is written in the background, hflush waits for it
+    }
+
+    @Override
+    public synchronized void hflush()
+            throws IOException
+    {
+        checkOpen();
+        drain();
+        out.hflush();
+    }
+
+    @Override
+    public synchronized void hsync()
+            throws IOException
+    {
+        checkOpen();
+        drain();
+        out.hsync();
+    }
+
+    @Override
+    public boolean hasCapability(String capability)
+    {
+        return out.hasCapability(capability);
+    }
+
+    @Override
+    public synchronized AbortableResult abort()
+    {
+        closed = true;
+        aborted = true;
+        // the underlying stream must not be written after it is aborted, so wait for the buffer being written
+        try {
+            getUninterruptibly(pendingWrites);
+        }
+        catch (ExecutionException e) {
+            // writes never complete exceptionally, failures are recorded instead
+        }
+        releaseBuffers();
+        return out.abort();
+    }
+
+    @Override
+    public synchronized void close()
+            throws IOException
+    {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            drain();
+        }
+        catch (IOException | RuntimeException e) {
+            releaseBuffers();
+            try {
+                out.close();
+            }
+            catch (IOException | RuntimeException closeException) {
+                if (e != closeException) {
+                    e.addSuppressed(closeException);
+                }
+            }
+            throw e;
+        }
+        releaseBuffers();
+        out.close();
+    }
+
+    /**
+     * Writes the current buffer, and waits for all the buffers to be written.
+     */
+    private void drain()
+            throws IOException
+    {
+        if (buffer != null && bufferPosition > 0) {
+            submitBuffer();
+        }
+        try {
+            pendingWrites.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for buffered writes");
+        }
+        catch (ExecutionException e) {
+            // writes never complete exceptionally, failures are recorded instead
+            throw new IOException(e.getCause());
+        }
+        checkFailure();
+    }
+
+    private void submitBuffer()
+    {
+        final byte[] data = buffer;
+        final int length = bufferPosition;
+        buffer = null;
+        bufferPosition = 0;
+        pendingWrites = pendingWrites.thenRunAsync(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try {
+                    if (failure == null && !aborted) {
+                        out.write(data, 0, length);
+                    }
+                }
+                catch (Throwable e) {
+                    // an exception escaping the task would skip the later writes, and their buffers would never be freed
+                    failure = e;
+                }
+                finally {
+                    freeBuffers.add(data);
+                }
+            }
+        }, executor);
+    }
+
+    /**
+     * Returns a buffer to fill, or null when the shared pool is exhausted and
+     * the stream has no buffer of its own, so the data must be written directly.
+     */
+    private byte[] takeBuffer()
+            throws IOException
+    {
+        byte[] free = freeBuffers.poll();
+        if (free != null) {
+            return free;
+        }
+        if (allocatedBuffers < maxBuffers) {
+            free = bufferPool.tryAcquire(bufferSize);
+            if (free != null) {
+                allocatedBuffers++;
+                return free;
+            }
+            if (allocatedBuffers == 0) {
+                return null;
+            }
+        }
+        try {
+            // all the buffers are being written
+            free = freeBuffers.take();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a write buffer");
+        }
+        checkFailure();
+        return free;
+    }
+
+    /**
+     * Returns the buffers of the closed stream to the shared pool, once the buffers being written are free.
+     */
+    private void releaseBuffers()
+    {
+        final byte[] current = buffer;
+        buffer = null;
+        bufferPosition = 0;
+        pendingWrites.whenComplete((result, throwable) -> {
+            if (current != null) {
+                bufferPool.release(current);
+            }
+            byte[] free;
+            while ((free = freeBuffers.poll()) != null) {
+                bufferPool.release(free);
+            }
+        });
+    }
+
+    private void checkOpen()
+            throws IOException
+    {
+        if (closed) {
+            throw new IOException("Stream is closed");
+        }
+        checkFailure();
+    }
+
+    private void checkFailure()
+            throws IOException
+    {
+        Throwable failure = this.failure;
+        if (failure == null) {
+            return;
+        }
+        if (failure instanceof IOException) {
+            throw new IOException("Background write failed: " + failure.getMessage(), failure);
+        }
+        throw new IOException("Background write failed", failure);
+    }
+
+    /**
+     * Pool of buffers shared by the streams, which bounds the memory of the
+     * buffers allocated by the pool, including the ones it keeps for reuse.
+     */
+    static final class BufferPool
+    {
+        private final long maxBytes;
+        // free buffers by size
+        private final Map<Integer, Deque<byte[]>> freeBuffers = new HashMap<>();
+        private long allocatedBytes;
+
+        public BufferPool(long maxBytes)
+        {
+            checkArgument(maxBytes > 0, "maxBytes must be positive");
+            this.maxBytes = maxBytes;
+        }
+
+        /**
+         * Returns a buffer of the given size, or null when the memory of the pool is in use.
+         */
+        public synchronized byte[] tryAcquire(int size)
+        {
+            Deque<byte[]> free = freeBuffers.get(size);
+            if (free != null && !free.isEmpty()) {
+                return free.pop();
+            }
+            // drop the free buffers of other sizes to make room
+            Iterator<Deque<byte[]>> iterator = freeBuffers.values().iterator();
+            while (allocatedBytes + size > maxBytes && iterator.hasNext()) {
+                Deque<byte[]> buffers = iterator.next();
+                while (allocatedBytes + size > maxBytes && !buffers.isEmpty()) {
+                    allocatedBytes -= buffers.pop().length;
+                }
+            }
+            if (allocatedBytes + size > maxBytes) {
+                return null;
+            }
+            allocatedBytes += size;
+            return new byte[size];
+        }
+
+        public synchronized void release(byte[] buffer)
+        {
+            Deque<byte[]> free = freeBuffers.get(buffer.length);
+            if (free == null) {
+                free = new ArrayDeque<>();
+                freeBuffers.put(buffer.length, free);
+            }
+            free.push(buffer);
+        }
+
+        public synchronized long getAllocatedBytes()
+        {
+            return allocatedBytes;
+        }
+    }
+}
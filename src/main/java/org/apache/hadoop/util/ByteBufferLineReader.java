@@ -0,0 +1,219 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.util;
+
+import com.facebook.presto.hadoop.TextLineLengthLimitExceededException;
+import org.apache.hadoop.io.Text;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import static java.nio.ByteOrder.LITTLE_ENDIAN;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A line reader over the remaining bytes of a {@link ByteBuffer}, such as a
+ * {@link java.nio.MappedByteBuffer} of a local file or a cached block. The lines
+ * are found directly in the buffer, and each line is copied once, into the
+ * {@link Text}. Lines are terminated like with {@link LineReader}: by CR, LF or
+ * CR+LF, or by a custom delimiter, and by the end of the buffer.
+ * <p>
+ * Since the whole input is visible, {@code maxBytesToConsume} is exact: a line
+ * fails when no terminator is found in that many bytes, rather than up to one read
+ * buffer later. The position and contents of the given buffer are not modified.
+ */
+public class ByteBufferLineReader
+{
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+
+    // little endian view of the input, for the word at a time newline scan
+    private final ByteBuffer buffer;
+    private final int limit;
+    private final byte[] recordDelimiterBytes;
+    private final int[] delimiterFallback;
+    // copies a line of the input into a Text
+    private final ByteBuffer lineSource;
+    private final DataInputStream lineInput;
+    private int position;
+
+    /**
+     * Create a line reader of the bytes between the position and the limit of the buffer.
+     *
+     * @param buffer the input
+     */
+    public ByteBufferLineReader(ByteBuffer buffer)
+    {
+        this(buffer, null);
+    }
+
+    /**
+     * Create a line reader of the bytes between the position and the limit of the buffer,
+     * using a custom delimiter of array of bytes.
+     *
+     * @param buffer the input
+     * @param recordDelimiterBytes The delimiter, or null for CR, LF and CR+LF
+     */
+    public ByteBufferLineReader(ByteBuffer buffer, byte[] recordDelimiterBytes)
+    {
+        requireNonNull(buffer, "buffer is null");
+        this.buffer = buffer.duplicate().order(LITTLE_ENDIAN);
+        this.position = buffer.position();
+        this.limit = buffer.limit();
+        this.recordDelimiterBytes = recordDelimiterBytes;
+        this.delimiterFallback = LineReader.computeDelimiterFallback(recordDelimiterBytes);
+        this.lineSource = buffer.duplicate();
+        this.lineInput = new DataInputStream(new InputStream()
+        {
+            @Override
+            public int read()
+            {
+                return lineSource.hasRemaining() ? lineSource.get() & 0xFF : -1;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length)
+            {
+                if (!lineSource.hasRemaining()) {
+                    return -1;
+                }
+                length = Math.min(length, lineSource.remaining());
+                lineSource.get(bytes, offset, length);
+                return length;
+            }
+        });
+    }
+
+    /**
+     * Read one line from the buffer into the given Text.
+     *
+     * @param str the object to store the given line (without newline)
+     * @param maxLineLength the maximum number of bytes to store into str;
+     * the rest of the line is silently discarded.
+     * @param maxBytesToConsume the maximum number of bytes to consume
+     * in this call, before the newline.
+     * @return the number of bytes read including the (longest) newline
+     * found, or 0 at the end of the buffer.
+     * @throws TextLineLengthLimitExceededException if a limit is exceeded
+     */
+    public int readLine(Text str, int maxLineLength, int maxBytesToConsume)
+            throws IOException
+    {
+        maxLineLength = Math.min(maxLineLength, MAX_ARRAY_SIZE);
+        maxBytesToConsume = Math.min(maxBytesToConsume, MAX_ARRAY_SIZE);
+        str.clear();
+        if (position >= limit) {
+            return 0;
+        }
+        int scanLimit = (int) Math.min(limit, (long) position + maxBytesToConsume);
+        int lineEnd;
+        int next;
+        String terminator;
+        if (recordDelimiterBytes == null) {
+            terminator = "newline";
+            lineEnd = LineReader.findLineTerminator(buffer, position, scanLimit);
+            next = lineEnd;
+            if (lineEnd < scanLimit) {
+                boolean crlf = buffer.get(lineEnd) == CR && lineEnd + 1 < limit && buffer.get(lineEnd + 1) == LF;
+                next += crlf ? 2 : 1;
+            }
+        }
+        else {
+            terminator = "delimiter";
+            // the delimiter must start before the scan limit
+            int delimiterLimit = (int) Math.min(limit, (long) scanLimit + recordDelimiterBytes.length - 1);
+            next = findDelimiterEnd(position, delimiterLimit);
+            lineEnd = next < 0 ? delimiterLimit : next - recordDelimiterBytes.length;
+            if (next < 0) {
+                next = delimiterLimit;
+            }
+        }
+        boolean terminated = next > lineEnd || scanLimit == limit;
+        int lineLength = lineEnd - position;
+        if (lineLength > maxLineLength) {
+            if (maxLineLength > 0) {
+                // We want to fail the read when the line length is over the limit.
+                throw new TextLineLengthLimitExceededException("Too many bytes before " + terminator + ": " + maxLineLength);
+            }
+        }
+        else if (lineLength > 0) {
+            lineSource.position(position);
+            str.readWithKnownLength(lineInput, lineLength);
+        }
+        if (!terminated) {
+            // no terminator in the first maxBytesToConsume bytes
+            throw new TextLineLengthLimitExceededException("Too many bytes before " + terminator + ": " + lineLength);
+        }
+        int bytesConsumed = next - position;
+        position = next;
+        return bytesConsumed;
+    }
+
+    /**
+     * Read from the buffer into the given Text.
+     *
+     * @param str the object to store the given line
+     * @param maxLineLength the maximum number of bytes to store into str.
+     * @return the number of bytes read including the newline
+     */
+    public int readLine(Text str, int maxLineLength)
+            throws IOException
+    {
+        return readLine(str, maxLineLength, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Read from the buffer into the given Text.
+     *
+     * @param str the object to store the given line
+     * @return the number of bytes read including the newline
+     */
+    public int readLine(Text str)
+            throws IOException
+    {
+        return readLine(str, Integer.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return the position in the buffer of the next line
+     */
+    public int getPosition()
+    {
+        return position;
+    }
+
+    /**
+     * @return the position after the first delimiter in {@code [start, end)}, or -1 if there is none
+     */
+    private int findDelimiterEnd(int start, int end)
+    {
+        int delPosn = 0;
+        for (int i = start; i < end; i++) {
+            byte value = buffer.get(i);
+            while (delPosn > 0 && value != recordDelimiterBytes[delPosn]) {
+                delPosn = delimiterFallback[delPosn];
+            }
+            if (value == recordDelimiterBytes[delPosn]) {
+                delPosn++;
+                if (delPosn == recordDelimiterBytes.length) {
+                    return i + 1;
+                }
+            }
+        }
+        return -1;
+    }
+}
@@ -25,7 +25,9 @@ import org.apache.hadoop.io.Text;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
+import static java.nio.ByteOrder.LITTLE_ENDIAN;
 import static org.apache.hadoop.fs.CommonConfigurationKeysPublic.IO_FILE_BUFFER_SIZE_KEY;
 
 /**
@@ -51,11 +53,38 @@ public class LineReader
     private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
     private static final byte CR = '\r';
     private static final byte LF = '\n';
+    // each byte of a word set to CR, LF, 0x01 and 0x80, for the SWAR newline scan
+    private static final long CR_WORD = 0x0D0D0D0D0D0D0D0DL;
+    private static final long LF_WORD = 0x0A0A0A0A0A0A0A0AL;
+    private static final long LOW_BITS = 0x0101010101010101L;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+
+    // whether a subclass changes how lines are read, e.g. to stop at the end of a split
+    private static final ClassValue<Boolean> OVERRIDES_READ_LINE = new ClassValue<Boolean>()
+    {
+        @Override
+        protected Boolean computeValue(Class<?> type)
+        {
+            try {
+                return type.getMethod("readLine", Text.class, int.class, int.class).getDeclaringClass() != LineReader.class ||
+                        type.getMethod("readLine", Text.class, int.class).getDeclaringClass() != LineReader.class ||
+                        type.getMethod("readLine", Text.class).getDeclaringClass() != LineReader.class;
+            }
+            catch (NoSuchMethodException e) {
+                throw new AssertionError(e);
+            }
+        }
+    };
     // The line delimiter
     private final byte[] recordDelimiterBytes;
+    // for each length of a partial delimiter match, the length of its longest proper
+    // suffix that is also a prefix of the delimiter (the Knuth-Morris-Pratt failure function)
+    private final int[] delimiterFallback;
     private int bufferSize = DEFAULT_BUFFER_SIZE;
     private InputStream in;
     private byte[] buffer;
+    // little endian view of buffer, used to scan for newlines one word at a time
+    private final ByteBuffer words;
     // the number of bytes of real data in the buffer
     private int bufferLength;
     // the current position in the buffer
@@ -86,7 +115,9 @@ public class LineReader
         this.in = in;
         this.bufferSize = bufferSize;
         this.buffer = new byte[this.bufferSize];
+        this.words = ByteBuffer.wrap(buffer).order(LITTLE_ENDIAN);
         this.recordDelimiterBytes = null;
+        this.delimiterFallback = null;
     }
 
     /**
@@ -117,7 +148,9 @@ public class LineReader
         this.in = in;
         this.bufferSize = DEFAULT_BUFFER_SIZE;
         this.buffer = new byte[this.bufferSize];
+        this.words = ByteBuffer.wrap(buffer).order(LITTLE_ENDIAN);
         this.recordDelimiterBytes = recordDelimiterBytes;
+        this.delimiterFallback = computeDelimiterFallback(recordDelimiterBytes);
     }
 
     /**
@@ -136,7 +169,9 @@ public class LineReader
         this.in = in;
         this.bufferSize = bufferSize;
         this.buffer = new byte[this.bufferSize];
+        this.words = ByteBuffer.wrap(buffer).order(LITTLE_ENDIAN);
         this.recordDelimiterBytes = recordDelimiterBytes;
+        this.delimiterFallback = computeDelimiterFallback(recordDelimiterBytes);
     }
 
     /**
@@ -157,7 +192,9 @@ public class LineReader
         this.in = in;
         this.bufferSize = conf.getInt(IO_FILE_BUFFER_SIZE_KEY, DEFAULT_BUFFER_SIZE);
         this.buffer = new byte[this.bufferSize];
+        this.words = ByteBuffer.wrap(buffer).order(LITTLE_ENDIAN);
         this.recordDelimiterBytes = recordDelimiterBytes;
+        this.delimiterFallback = computeDelimiterFallback(recordDelimiterBytes);
     }
 
     /**
@@ -254,6 +291,13 @@ public class LineReader
                 }
             }
             for (; bufferPosn < bufferLength; ++bufferPosn) { //search for newline
+                if (!prevCharCR) {
+                    // skip the bytes that are neither CR nor LF
+                    bufferPosn = findLineTerminator(words, bufferPosn, bufferLength);
+                    if (bufferPosn >= bufferLength) {
+                        break;
+                    }
+                }
                 if (buffer[bufferPosn] == LF) {
                     newlineLength = (prevCharCR) ? 2 : 1;
                     ++bufferPosn; // at next invocation proceed from following byte
@@ -300,6 +344,38 @@ public class LineReader
         return (int) bytesConsumed;
     }
 
+    /**
+     * Finds the first CR or LF byte in {@code [position, limit)} of the buffer.
+     * Eight bytes are checked at a time, with the zero byte test of
+     * <a href="https://graphics.stanford.edu/~seander/bithacks.html#ZeroInWord">Bit Twiddling Hacks</a>
+     * applied to the word XORed with CR and with LF. The test can also flag the bytes
+     * after a match, but never the bytes before it, so the lowest flag is exact.
+     *
+     * @param words little endian view of the buffer
+     * @return the position of the byte, or {@code limit} if there is none
+     */
+    static int findLineTerminator(ByteBuffer words, int position, int limit)
+    {
+        int wordLimit = limit - Long.BYTES;
+        while (position <= wordLimit) {
+            long word = words.getLong(position);
+            long cr = word ^ CR_WORD;
+            long lf = word ^ LF_WORD;
+            long matches = ((cr - LOW_BITS) & ~cr | (lf - LOW_BITS) & ~lf) & HIGH_BITS;
+            if (matches != 0) {
+                return position + (Long.numberOfTrailingZeros(matches) >>> 3);
+            }
+            position += Long.BYTES;
+        }
+        for (; position < limit; position++) {
+            byte value = words.get(position);
+            if (value == CR || value == LF) {
+                return position;
+            }
+        }
+        return position;
+    }
+
     /**
      * Read a line terminated by a custom delimiter.
      */
@@ -307,7 +383,7 @@ public class LineReader
             throws IOException
     {
         /* We're reading data from inputStream, but the head of the stream may be
-         *  already captured in the previous buffer, so we have several cases:
+         * already captured in the previous buffer, so we have several cases:
          *
          * 1. The buffer tail does not contain any character sequence which
          *    matches with the head of delimiter. We count it as a
@@ -340,7 +416,13 @@ public class LineReader
          *
          *     2.2 If the following bytes are not the remaining characters of
          *         the delimiter ( as mentioned in the example),
-         *         then we have to include the ambiguous characters in str.
+         *         then we have to include the ambiguous characters in str,
+         *         or the part of them that is not the head of a new match.
+         *
+         * The delimiter is matched with the Knuth-Morris-Pratt algorithm, so each
+         * byte is read once. The ambiguous characters are always the head of the
+         * delimiter, so they are not kept: the bytes of the partial match at the end
+         * of each buffer are the first delPosn bytes of the delimiter.
          */
         str.clear();
         int txtLength = 0; // tracks str.getLength(), as an optimization
@@ -361,25 +443,18 @@ public class LineReader
                     break; // EOF
                 }
             }
-            for (; bufferPosn < bufferLength; ++bufferPosn) {
-                if (buffer[bufferPosn] == recordDelimiterBytes[delPosn]) {
-                    delPosn++;
-                    if (delPosn >= recordDelimiterBytes.length) {
-                        bufferPosn++;
-                        break;
-                    }
-                }
-                else if (delPosn != 0) {
-                    bufferPosn -= delPosn;
-                    if (bufferPosn < -1) {
-                        bufferPosn = -1;
-                    }
-                    delPosn = 0;
-                }
-            }
+            delPosn = matchDelimiter(delPosn);
             int readLength = bufferPosn - startPosn;
-            bytesConsumed += readLength;
-            int appendLength = readLength - delPosn;
+            bytesConsumed += ambiguousByteCount + readLength;
+            // the ambiguous characters and the bytes read, except the (partial) delimiter
+            int contentLength = ambiguousByteCount + readLength - delPosn;
+            if (ambiguousByteCount > 0 && contentLength >= ambiguousByteCount) {
+                // since it is now certain that the split did not split a delimiter we
+                // should not read the next record: clear the flag otherwise duplicate
+                // records could be generated
+                unsetNeedAdditionalRecordAfterSplit();
+            }
+            int appendLength = contentLength;
             if (appendLength > maxLineLength - txtLength) {
                 appendLength = maxLineLength - txtLength;
                 if (appendLength > 0) {
@@ -387,16 +462,6 @@ public class LineReader
                     throw new TextLineLengthLimitExceededException("Too many bytes before delimiter: " + maxLineLength);
                 }
             }
-            bytesConsumed += ambiguousByteCount;
-            if (appendLength >= 0 && ambiguousByteCount > 0) {
-                //appending the ambiguous characters (refer case 2.2)
-                str.append(recordDelimiterBytes, 0, ambiguousByteCount);
-                ambiguousByteCount = 0;
-                // since it is now certain that the split did not split a delimiter we
-                // should not read the next record: clear the flag otherwise duplicate
-                // records could be generated
-                unsetNeedAdditionalRecordAfterSplit();
-            }
             if (appendLength > 0) {
                 int newTxtLength = txtLength + appendLength;
                 if (str.getBytes().length < newTxtLength && Math.max(newTxtLength, txtLength << 1) > MAX_ARRAY_SIZE) {
@@ -404,14 +469,19 @@ public class LineReader
                     // In such case we will throw an IOException so the caller can deal with it.
                     throw new TextLineLengthLimitExceededException("Too many bytes before delimiter: " + newTxtLength);
                 }
-                str.append(buffer, startPosn, appendLength);
+                //appending the ambiguous characters (refer case 2.2)
+                int ambiguousAppendLength = Math.min(ambiguousByteCount, appendLength);
+                str.append(recordDelimiterBytes, 0, ambiguousAppendLength);
+                if (appendLength > ambiguousAppendLength) {
+                    str.append(buffer, startPosn, appendLength - ambiguousAppendLength);
+                }
                 txtLength = newTxtLength;
             }
-            if (bufferPosn >= bufferLength) {
-                if (delPosn > 0 && delPosn < recordDelimiterBytes.length) {
-                    ambiguousByteCount = delPosn;
-                    bytesConsumed -= ambiguousByteCount; //to be consumed in next
-                }
+            ambiguousByteCount = 0;
+            if (delPosn < recordDelimiterBytes.length) {
+                // the buffer is exhausted
+                ambiguousByteCount = delPosn;
+                bytesConsumed -= ambiguousByteCount; //to be consumed in next
             }
         }
         while (delPosn < recordDelimiterBytes.length
@@ -426,6 +496,57 @@ public class LineReader
         return (int) bytesConsumed;
     }
 
+    /**
+     * Advances bufferPosn until the end of the delimiter, or the end of the buffer.
+     *
+     * @param delPosn the length of the partial delimiter match before bufferPosn
+     * @return the length of the (partial) delimiter match ending at bufferPosn
+     */
+    private int matchDelimiter(int delPosn)
+    {
+        byte first = recordDelimiterBytes[0];
+        for (; bufferPosn < bufferLength; ++bufferPosn) {
+            if (delPosn == 0) {
+                while (buffer[bufferPosn] != first) {
+                    if (++bufferPosn == bufferLength) {
+                        return 0;
+                    }
+                }
+            }
+            byte value = buffer[bufferPosn];
+            while (delPosn > 0 && value != recordDelimiterBytes[delPosn]) {
+                delPosn = delimiterFallback[delPosn];
+            }
+            if (value == recordDelimiterBytes[delPosn]) {
+                delPosn++;
+                if (delPosn == recordDelimiterBytes.length) {
+                    bufferPosn++;
+                    break;
+                }
+            }
+        }
+        return delPosn;
+    }
+
+    static int[] computeDelimiterFallback(byte[] delimiter)
+    {
+        if (delimiter == null) {
+            return null;
+        }
+        int[] fallback = new int[delimiter.length];
+        int border = 0;
+        for (int length = 2; length < delimiter.length; length++) {
+            while (border > 0 && delimiter[length - 1] != delimiter[border]) {
+                border = fallback[border];
+            }
+            if (delimiter[length - 1] == delimiter[border]) {
+                border++;
+            }
+            fallback[length] = border;
+        }
+        return fallback;
+    }
+
     /**
      * Read from the InputStream into the given Text.
      *
@@ -453,6 +574,81 @@ public class LineReader
         return readLine(str, Integer.MAX_VALUE, Integer.MAX_VALUE);
     }
 
+    /**
+     * Finds the lines that are complete in the read buffer, without copying them.
+     * Line {@code i} is {@code lengths[i]} bytes of {@link #getBuffer()} starting at
+     * {@code offsets[i]}, without its terminator, and {@code offsets[i + 1] - offsets[i]}
+     * bytes are consumed to read it. For the last line found, {@code offsets[count]} is
+     * the offset after its terminator. The buffer is valid until the next read.
+     * <p>
+     * Lines are found until the arrays are full, or the next line is not complete in the
+     * buffer. This method then returns 0, and the next line must be read with
+     * {@link #readLine(Text, int, int)}, which also handles lines longer than the buffer.
+     * A line terminated by a CR at the end of the buffer is incomplete, since the next
+     * byte may be a LF.
+     * <p>
+     * Lines are found in the buffer directly, so this method is only supported when the
+     * line reading of this class is not overridden, as split line readers do to stop at
+     * the end of their split.
+     *
+     * @param offsets offsets of the lines, with room for one more entry than the lines
+     * @param lengths lengths of the lines
+     * @return the number of lines found, 0 if the next line is not complete in the
+     * buffer, or -1 at the end of the stream
+     * @throws IOException if the underlying stream throws
+     * @throws UnsupportedOperationException if a subclass overrides {@code readLine}
+     */
+    public int readLineOffsets(int[] offsets, int[] lengths)
+            throws IOException
+    {
+        if (OVERRIDES_READ_LINE.get(getClass())) {
+            throw new UnsupportedOperationException(getClass().getName() + " overrides readLine, so its lines can not be read as offsets");
+        }
+        int maxLines = Math.min(offsets.length - 1, lengths.length);
+        if (maxLines <= 0) {
+            throw new IllegalArgumentException("offsets and lengths must have room for a line");
+        }
+        if (bufferPosn >= bufferLength) {
+            bufferPosn = 0;
+            bufferLength = fillBuffer(in, buffer, false);
+            if (bufferLength <= 0) {
+                return -1; // EOF
+            }
+        }
+        int lines = 0;
+        offsets[0] = bufferPosn;
+        while (lines < maxLines && bufferPosn < bufferLength) {
+            int lineStart = bufferPosn;
+            int lineEnd;
+            if (recordDelimiterBytes == null) {
+                lineEnd = findLineTerminator(words, lineStart, bufferLength);
+                if (lineEnd >= bufferLength || (buffer[lineEnd] == CR && lineEnd + 1 >= bufferLength)) {
+                    break;
+                }
+                bufferPosn = lineEnd + ((buffer[lineEnd] == CR && buffer[lineEnd + 1] == LF) ? 2 : 1);
+            }
+            else {
+                if (matchDelimiter(0) < recordDelimiterBytes.length) {
+                    bufferPosn = lineStart;
+                    break;
+                }
+                lineEnd = bufferPosn - recordDelimiterBytes.length;
+            }
+            lengths[lines] = lineEnd - lineStart;
+            lines++;
+            offsets[lines] = bufferPosn;
+        }
+        return lines;
+    }
+
+    /**
+     * @return the read buffer, containing the lines found by {@link #readLineOffsets(int[], int[])}
+     */
+    public byte[] getBuffer()
+    {
+        return buffer;
+    }
+
     protected int getBufferPosn()
     {
         return bufferPosn;
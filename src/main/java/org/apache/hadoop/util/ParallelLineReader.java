@@ -0,0 +1,382 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.util;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Reads the lines of a single uncompressed text file with a {@link LineReader} for
+ * each chunk of the file, in parallel.
+ * <p>
+ * Each chunk {@code [start, end)} owns the lines that start in {@code (start, end]},
+ * and the first chunk also owns the line at offset 0, like the splits of a text input
+ * format. A chunk reader skips to the first line it owns, and reads past the end of the
+ * chunk to complete its last line. For a custom delimiter, the skip starts
+ * {@code delimiter length - 1} bytes before the chunk, so that a delimiter that crosses
+ * the start of the chunk is found. A delimiter that can overlap itself, such as
+ * {@code "aa"}, has no boundaries that can be found from the middle of the file, so
+ * such files are read as a single chunk.
+ * <p>
+ * The chunks are read on the given executor, such as a {@link java.util.concurrent.ForkJoinPool}.
+ */
+public class ParallelLineReader
+{
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final FileSystem fileSystem;
+    private final Path path;
+    private final long length;
+    private final long chunkSize;
+    private final int chunkCount;
+    private final byte[] recordDelimiterBytes;
+    private final ExecutorService executor;
+
+    /**
+     * @param length length of the file
+     * @param chunkSize approximate number of bytes read by each reader
+     * @param recordDelimiterBytes the delimiter, or null for CR, LF and CR+LF
+     */
+    public ParallelLineReader(FileSystem fileSystem, Path path, long length, long chunkSize, byte[] recordDelimiterBytes, ExecutorService executor)
+    {
+        checkArgument(length >= 0, "length is negative");
+        checkArgument(chunkSize > 0, "chunkSize must be positive");
+        checkArgument(recordDelimiterBytes == null || recordDelimiterBytes.length > 0, "recordDelimiterBytes is empty");
+        this.fileSystem = requireNonNull(fileSystem, "fileSystem is null");
+        this.path = requireNonNull(path, "path is null");
+        this.length = length;
+        this.recordDelimiterBytes = recordDelimiterBytes;
+        this.executor = requireNonNull(executor, "executor is null");
+        if (recordDelimiterBytes != null && isSelfOverlapping(recordDelimiterBytes)) {
+            chunkSize = Math.max(length, 1);
+        }
+        this.chunkSize = chunkSize;
+        this.chunkCount = (int) Math.max(1, (length + chunkSize - 1) / chunkSize);
+    }
+
+    public int getChunkCount()
+    {
+        return chunkCount;
+    }
+
+    /**
+     * Processes each chunk on the executor.
+     *
+     * @return the results of the chunks, in the order of the chunks in the file
+     */
+    public <T> List<T> processChunks(ChunkProcessor<T> processor)
+            throws IOException
+    {
+        requireNonNull(processor, "processor is null");
+        List<Future<T>> futures = new ArrayList<>(chunkCount);
+        for (int chunk = 0; chunk < chunkCount; chunk++) {
+            futures.add(submit(chunk, processor));
+        }
+        List<T> results = new ArrayList<>(chunkCount);
+        try {
+            for (Future<T> future : futures) {
+                results.add(getDone(future));
+            }
+        }
+        finally {
+            for (Future<T> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Passes the lines of the file to the consumer in order, on the calling thread. Chunks
+     * are read ahead of the consumer while the chunks not consumed yet total at most
+     * {@code maxBufferedBytes}, and at least one chunk is always read. The lines of a chunk
+     * are buffered in a single byte array, which is reused for a later chunk once its lines
+     * are consumed.
+     */
+    public void forEachLine(long maxBufferedBytes, LineConsumer consumer)
+            throws IOException
+    {
+        checkArgument(maxBufferedBytes > 0, "maxBufferedBytes must be positive");
+        requireNonNull(consumer, "consumer is null");
+        final Queue<LineBatch> freeBatches = new ConcurrentLinkedQueue<>();
+        ChunkProcessor<LineBatch> processor = new ChunkProcessor<LineBatch>()
+        {
+            @Override
+            public LineBatch process(Lines lines)
+                    throws IOException
+            {
+                LineBatch batch = freeBatches.poll();
+                if (batch == null) {
+                    batch = new LineBatch();
+                }
+                batch.clear();
+                Text line = new Text();
+                while (lines.readLine(line) > 0) {
+                    batch.add(line);
+                }
+                return batch;
+            }
+        };
+        Deque<Future<LineBatch>> pending = new ArrayDeque<>();
+        long pendingBytes = 0;
+        int nextChunk = 0;
+        Text line = new Text();
+        try {
+            while (nextChunk < chunkCount || !pending.isEmpty()) {
+                while (nextChunk < chunkCount && (pending.isEmpty() || pendingBytes + getChunkLength(nextChunk) <= maxBufferedBytes)) {
+                    pending.add(submit(nextChunk, processor));
+                    pendingBytes += getChunkLength(nextChunk);
+                    nextChunk++;
+                }
+                int chunk = nextChunk - pending.size();
+                LineBatch batch = getDone(pending.poll());
+                pendingBytes -= getChunkLength(chunk);
+                for (int i = 0; i < batch.getLineCount(); i++) {
+                    batch.getLine(i, line);
+                    consumer.accept(line);
+                }
+                freeBatches.add(batch);
+            }
+        }
+        finally {
+            for (Future<LineBatch> future : pending) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private long getChunkLength(int chunk)
+    {
+        long start = chunk * chunkSize;
+        return Math.min(start + chunkSize, length) - start;
+    }
+
+    private <T> Future<T> submit(final int chunk, final ChunkProcessor<T> processor)
+    {
+        return executor.submit(new Callable<T>()
+        {
+            @Override
+            public T call()
+                    throws IOException
+            {
+                long start = chunk * chunkSize;
+                long end = start + getChunkLength(chunk);
+                try (FSDataInputStream in = fileSystem.open(path, BUFFER_SIZE)) {
+                    return processor.process(new Lines(in, start, end));
+                }
+            }
+        });
+    }
+
+    private static <T> T getDone(Future<T> future)
+            throws IOException
+    {
+        try {
+            return future.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading lines");
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * @return true if a proper suffix of the delimiter is also a prefix of the delimiter
+     */
+    private static boolean isSelfOverlapping(byte[] delimiter)
+    {
+        for (int border = 1; border < delimiter.length; border++) {
+            boolean matches = true;
+            for (int i = 0; i < border && matches; i++) {
+                matches = delimiter[i] == delimiter[delimiter.length - border + i];
+            }
+            if (matches) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString()
+    {
+        return toStringHelper(this)
+                .add("path", path)
+                .add("length", length)
+                .add("chunkSize", chunkSize)
+                .add("chunkCount", chunkCount)
+                .toString();
+    }
+
+    public interface ChunkProcessor<T>
+    {
+        /**
+         * Called concurrently for the chunks of the file.
+         */
+        T process(Lines lines)
+                throws IOException;
+    }
+
+    public interface LineConsumer
+    {
+        /**
+         * @param line the line, only valid during the call
+         */
+        void accept(Text line)
+                throws IOException;
+    }
+
+    /**
+     * The lines of a chunk, stored one after the other in a single growing array.
+     */
+    private static final class LineBatch
+    {
+        private byte[] bytes = new byte[BUFFER_SIZE];
+        private int[] lineEnds = new int[1024];
+        private int lineCount;
+        private int size;
+
+        public void clear()
+        {
+            lineCount = 0;
+            size = 0;
+        }
+
+        public void add(Text line)
+        {
+            int length = line.getLength();
+            if (size + length > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + length));
+            }
+            if (lineCount == lineEnds.length) {
+                lineEnds = Arrays.copyOf(lineEnds, lineEnds.length * 2);
+            }
+            System.arraycopy(line.getBytes(), 0, bytes, size, length);
+            size += length;
+            lineEnds[lineCount] = size;
+            lineCount++;
+        }
+
+        public int getLineCount()
+        {
+            return lineCount;
+        }
+
+        public void getLine(int index, Text line)
+        {
+            int start = (index == 0) ? 0 : lineEnds[index - 1];
+            line.set(bytes, start, lineEnds[index] - start);
+        }
+    }
+
+    /**
+     * The lines owned by a chunk.
+     */
+    public final class Lines
+    {
+        private final LineReader reader;
+        private final long start;
+        private final long end;
+        private long position;
+        private boolean finished;
+
+        private Lines(FSDataInputStream in, long start, long end)
+                throws IOException
+        {
+            this.start = start;
+            this.end = end;
+            long skipStart = start;
+            if (start > 0 && recordDelimiterBytes != null) {
+                // a delimiter ending after the start of the chunk may begin before it
+                skipStart = Math.max(0, start - (recordDelimiterBytes.length - 1));
+            }
+            in.seek(skipStart);
+            this.reader = recordDelimiterBytes == null ? new LineReader(in, BUFFER_SIZE) : new LineReader(in, BUFFER_SIZE, recordDelimiterBytes);
+            this.position = skipStart;
+            if (start > 0) {
+                // the line containing the start of the chunk is owned by the previous chunk
+                position += reader.readLine(new Text(), 0, Integer.MAX_VALUE);
+            }
+        }
+
+        /**
+         * @return the offset of the chunk in the file
+         */
+        public long getStart()
+        {
+            return start;
+        }
+
+        /**
+         * @return the offset in the file of the next line
+         */
+        public long getPosition()
+        {
+            return position;
+        }
+
+        /**
+         * Reads the next line owned by the chunk.
+         *
+         * @return the number of bytes read including the newline, or 0 after the last line of the chunk
+         */
+        public int readLine(Text str)
+                throws IOException
+        {
+            if (finished || position > end) {
+                str.clear();
+                return 0;
+            }
+            int bytesConsumed = reader.readLine(str);
+            if (bytesConsumed == 0) {
+                finished = true;
+            }
+            position += bytesConsumed;
+            return bytesConsumed;
+        }
+    }
+}
@@ -13,14 +13,40 @@
  */
 package com.facebook.presto.hadoop;
 
+import com.google.common.collect.ImmutableList;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LeakDetector;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PrestoFileSystemCacheStats.SchemeStats;
+import org.apache.hadoop.fs.RawLocalFileSystem;
+import org.apache.hadoop.security.UserGroupInformation;
 import org.testng.annotations.Test;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.URI;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static java.util.concurrent.Executors.newFixedThreadPool;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.apache.hadoop.security.UserGroupInformation.AuthenticationMethod.KERBEROS;
+import static org.apache.hadoop.security.UserGroupInformationShim.getSubject;
+import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertNotSame;
 import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
 
 public class TestHadoopFileSystemCache
 {
@@ -44,4 +70,583 @@ public class TestHadoopFileSystemCache
         FileSystem fs3 = FileSystem.get(uri, conf);
         assertNotSame(fs3, fs1);
     }
+
+    @Test
+    public void testEvictLeastRecentlyUsed()
+            throws Exception
+    {
+        HadoopFileSystemCache.initialize();
+
+        FileSystem.closeAll();
+
+        Configuration conf = new Configuration();
+        conf.setInt("fs.cache.max-size", 2);
+        URI uri = URI.create("file:///");
+
+        FileSystem alice = getFileSystem("alice", uri, conf);
+        FileSystem bob = getFileSystem("bob", uri, conf);
+        assertSame(getFileSystem("alice", uri, conf), alice);
+
+        // the cache is full, so bob is evicted instead of failing the request
+        FileSystem carol = getFileSystem("carol", uri, conf);
+        assertSame(getFileSystem("carol", uri, conf), carol);
+        assertSame(getFileSystem("alice", uri, conf), alice);
+        assertNotSame(getFileSystem("bob", uri, conf), bob);
+
+        FileSystem.closeAll();
+    }
+
+    @Test
+    public void testEvictLeastRecentlyUsedConcurrently()
+            throws Exception
+    {
+        HadoopFileSystemCache.initialize();
+
+        FileSystem.closeAll();
+
+        Configuration conf = new Configuration();
+        conf.setInt("fs.cache.max-size", 4);
+        conf.setClass("fs.slow.impl", SlowFileSystem.class, FileSystem.class);
+        URI uri = URI.create("slow://eviction/");
+        SlowFileSystem.failing = false;
+        ExecutorService executor = newFixedThreadPool(16);
+        try {
+            // the misses of different users create their file systems at the same time
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<FileSystem>> futures = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                String user = "user-" + i;
+                futures.add(executor.submit((Callable<FileSystem>) () -> {
+                    start.await();
+                    return getFileSystem(user, uri, conf);
+                }));
+            }
+            start.countDown();
+            for (Future<FileSystem> future : futures) {
+                future.get();
+            }
+            assertEquals(HadoopFileSystemCache.getStats().getSize().get("slow"), Integer.valueOf(4));
+        }
+        finally {
+            executor.shutdownNow();
+            FileSystem.closeAll();
+        }
+    }
+
+    @Test
+    public void testCloseRemovesFromCache()
+            throws Exception
+    {
+        HadoopFileSystemCache.initialize();
+
+        FileSystem.closeAll();
+
+        Configuration conf = new Configuration();
+        URI uri = URI.create("file:///");
+        FileSystem alice = getFileSystem("alice", uri, conf);
+        FileSystem bob = getFileSystem("bob", uri, conf);
+
+        alice.close();
+
+        assertNotSame(getFileSystem("alice", uri, conf), alice);
+        assertSame(getFileSystem("bob", uri, conf), bob);
+
+        FileSystem.closeAll();
+    }
+
+    @Test
+    public void testCloseAllForUser()
+            throws Exception
+    {
+        HadoopFileSystemCache.initialize();
+
+        FileSystem.closeAll();
+
+        Configuration conf = new Configuration();
+        URI uri = URI.create("file:///");
+        FileSystem alice = getFileSystem("alice", uri, conf);
+        FileSystem bob = getFileSystem("bob", uri, conf);
+
+        FileSystem.closeAllForUGI(UserGroupInformation.createRemoteUser("alice"));
+
+        assertNotSame(getFileSystem("alice", uri, conf), alice);
+        assertSame(getFileSystem("bob", uri, conf), bob);
+
+        FileSystem.closeAll();
+    }
+
+    @Test
+    public void testStats()
+            throws Exception
+    {
+        HadoopFileSystemCache.initialize();
+
+        FileSystem.closeAll();
+
+        SchemeStats stats = HadoopFileSystemCache.getStats().getSchemeStats("file");
+        long hits = stats.getHits();
+        long misses = stats.getMisses();
+        long creations = stats.getCreations();
+
+        Configuration conf = new Configuration();
+        URI uri = URI.create("file:///");
+        FileSystem.get(uri, conf);
+        FileSystem.get(uri, conf);
+        FileSystem.get(uri, conf);
+
+        assertEquals(stats.getMisses() - misses, 1);
+        assertEquals(stats.getCreations() - creations, 1);
+        assertEquals(stats.getHits() - hits, 2);
+        assertEquals(HadoopFileSystemCache.getStats().getSize().get("file"), Integer.valueOf(1));
+
+        FileSystem.closeAll();
+    }
+
+    @Test
+    public void testConcurrentCreation()
+            throws Exception
+    {
+        HadoopFileSystemCache.initialize();
+
+        FileSystem.closeAll();
+
+        Configuration conf = new Configuration();
+        conf.setClass("fs.slow.impl", SlowFileSystem.class, FileSystem.class);
+        URI uri = URI.create("slow://concurrent/");
+        int initializations = SlowFileSystem.INITIALIZATIONS.get();
+        SlowFileSystem.failing = false;
+
+        List<Future<FileSystem>> futures = getConcurrently(uri, conf, 64);
+        FileSystem expected = futures.get(0).get();
+        for (Future<FileSystem> future : futures) {
+            assertSame(future.get(), expected);
+        }
+        assertEquals(SlowFileSystem.INITIALIZATIONS.get() - initializations, 1);
+
+        FileSystem.closeAll();
+    }
+
+    @Test
+    public void testConcurrentCreationFailure()
+            throws Exception
+    {
+        HadoopFileSystemCache.initialize();
+
+        FileSystem.closeAll();
+
+        Configuration conf = new Configuration();
+        conf.setClass("fs.slow.impl", SlowFileSystem.class, FileSystem.class);
+        URI uri = URI.create("slow://failure/");
+        SlowFileSystem.failing = true;
+        try {
+            for (Future<FileSystem> future : getConcurrently(uri, conf, 64)) {
+                try {
+                    future.get();
+                    fail("expected exception");
+                }
+                catch (ExecutionException e) {
+                    assertTrue(e.getCause() instanceof IOException);
+                    assertEquals(e.getCause().getMessage(), "initialization failed");
+                }
+            }
+        }
+        finally {
+            SlowFileSystem.failing = false;
+        }
+
+        // the failure is not cached
+        int initializations = SlowFileSystem.INITIALIZATIONS.get();
+        FileSystem fileSystem = FileSystem.get(uri, conf);
+        assertSame(FileSystem.get(uri, conf), fileSystem);
+        assertEquals(SlowFileSystem.INITIALIZATIONS.get() - initializations, 1);
+
+        FileSystem.closeAll();
+    }
+
+    @Test
+    public void testWarmUp()
+            throws Exception
+    {
+        HadoopFileSystemCache.initialize();
+
+        FileSystem.closeAll();
+
+        Configuration conf = new Configuration();
+        conf.setClass("fs.slow.impl", SlowFileSystem.class, FileSystem.class);
+        URI uri = URI.create("slow://warm-up/");
+        URI missing = URI.create("missing://warm-up/");
+        SlowFileSystem.failing = false;
+
+        List<FileSystemWarmUpResult> results = HadoopFileSystemCache.warmUp(
+                conf,
+                ImmutableList.of(uri, missing),
+                ImmutableList.of(UserGroupInformation.createRemoteUser("alice"), UserGroupInformation.createRemoteUser("bob")),
+                4);
+        assertEquals(results.size(), 4);
+        for (FileSystemWarmUpResult result : results) {
+            assertEquals(result.isSuccessful(), result.getUri().equals(uri), result.toString());
+        }
+        assertTrue(results.get(0).getDurationMillis() >= 500);
+
+        // the file system is already cached
+        int initializations = SlowFileSystem.INITIALIZATIONS.get();
+        getFileSystem("alice", uri, conf);
+        getFileSystem("bob", uri, conf);
+        assertEquals(SlowFileSystem.INITIALIZATIONS.get(), initializations);
+
+        FileSystem.closeAll();
+    }
+
+    @Test
+    public void testEvictedFileSystemClosedWhenUnreachable()
+            throws Exception
+    {
+        HadoopFileSystemCache.initialize();
+
+        FileSystem.closeAll();
+
+        Configuration conf = new Configuration();
+        conf.setInt("fs.cache.max-size", 1);
+        conf.setClass("fs.tracking.impl", TrackingFileSystem.class, FileSystem.class);
+        URI uri = URI.create("tracking:///");
+        File file = File.createTempFile("evicted", ".bin");
+        int closes = TrackingFileSystem.CLOSES.get();
+        long streamLeaks = LeakDetector.getStreamLeaks();
+        try {
+            FileSystem alice = getFileSystem("alice", uri, conf);
+            FSDataInputStream leaked = alice.open(new Path(uri.resolve(file.getPath())));
+            assertEquals(leaked.read(), -1);
+
+            // alice is evicted, but can still be used
+            getFileSystem("bob", uri, conf);
+            assertTrue(alice.listStatus(new Path(uri.resolve(file.getParent()))).length > 0);
+            assertEquals(alice.getFileStatus(new Path(uri.resolve(file.getPath()))).getLen(), 0);
+            assertEquals(TrackingFileSystem.CLOSES.get(), closes);
+
+            // the leaked stream does not keep the file system open once both are unreachable
+            alice = null;
+            leaked = null;
+            long deadline = System.nanoTime() + SECONDS.toNanos(30);
+            while (TrackingFileSystem.CLOSES.get() == closes && System.nanoTime() < deadline) {
+                System.gc();
+                Thread.sleep(50);
+            }
+            assertEquals(TrackingFileSystem.CLOSES.get(), closes + 1);
+            assertTrue(LeakDetector.getStreamLeaks() > streamLeaks);
+        }
+        finally {
+            file.delete();
+            FileSystem.closeAll();
+        }
+    }
+
+    @Test
+    public void testEvictedFileSystemClosedAfterLastStream()
+            throws Exception
+    {
+        HadoopFileSystemCache.initialize();
+
+        FileSystem.closeAll();
+
+        Configuration conf = new Configuration();
+        conf.setInt("fs.cache.max-size", 1);
+        conf.set("fs.cache.retirement-delay", "0s");
+        conf.setClass("fs.tracking.impl", TrackingFileSystem.class, FileSystem.class);
+        URI uri = URI.create("tracking:///");
+        File file = File.createTempFile("evicted", ".bin");
+        int closes = TrackingFileSystem.CLOSES.get();
+        try {
+            // the file systems stay reachable, so they are not closed by the garbage collector
+            FileSystem alice = getFileSystem("alice", uri, conf);
+            FSDataInputStream stream = alice.open(new Path(uri.resolve(file.getPath())));
+
+            // alice is evicted, and kept open by its stream
+            FileSystem bob = getFileSystem("bob", uri, conf);
+            Thread.sleep(100);
+            assertEquals(TrackingFileSystem.CLOSES.get(), closes);
+            assertEquals(stream.read(), -1);
+
+            stream.close();
+            awaitCloses(closes + 1);
+
+            // bob has no open streams, so it is closed once it is evicted
+            getFileSystem("carol", uri, conf);
+            awaitCloses(closes + 2);
+            assertTrue(bob.getUri().toString().startsWith("tracking:"));
+        }
+        finally {
+            file.delete();
+            FileSystem.closeAll();
+        }
+    }
+
+    @Test
+    public void testRefreshAhead()
+            throws Exception
+    {
+        HadoopFileSystemCache.initialize();
+
+        FileSystem.closeAll();
+
+        Configuration conf = refreshAheadConfiguration();
+        URI uri = URI.create("hdfs://refresh-ahead/");
+        UserGroupInformation alice = createKerberosUser("alice", "ticket-1");
+        SchemeStats stats = HadoopFileSystemCache.getStats().getSchemeStats("hdfs");
+        long refreshes = stats.getRefreshes();
+        try {
+            FileSystem stale = getFileSystem(alice, uri, conf);
+
+            // the stale file system is used until the replacement is ready
+            setTicket(alice, "ticket-2");
+            assertSame(getFileSystem(alice, uri, conf), stale);
+            FileSystem refreshed = awaitReplacement(alice, uri, conf, stale);
+            assertSame(getFileSystem(alice, uri, conf), refreshed);
+            assertEquals(stats.getRefreshes() - refreshes, 1);
+        }
+        finally {
+            FileSystem.closeAll();
+        }
+    }
+
+    @Test
+    public void testRefreshAheadFailure()
+            throws Exception
+    {
+        HadoopFileSystemCache.initialize();
+
+        FileSystem.closeAll();
+
+        Configuration conf = refreshAheadConfiguration();
+        URI uri = URI.create("hdfs://refresh-ahead-failure/");
+        UserGroupInformation alice = createKerberosUser("alice", "ticket-1");
+        SchemeStats stats = HadoopFileSystemCache.getStats().getSchemeStats("hdfs");
+        long refreshFailures = stats.getRefreshFailures();
+        try {
+            FileSystem stale = getFileSystem(alice, uri, conf);
+
+            RefreshingFileSystem.failing = true;
+            setTicket(alice, "ticket-2");
+            assertSame(getFileSystem(alice, uri, conf), stale);
+            long deadline = System.nanoTime() + SECONDS.toNanos(10);
+            while (stats.getRefreshFailures() == refreshFailures && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(stats.getRefreshFailures() - refreshFailures, 1);
+
+            // the stale file system is still cached, and the next lookup retries the refresh
+            RefreshingFileSystem.failing = false;
+            assertSame(getFileSystem(alice, uri, conf), stale);
+            awaitReplacement(alice, uri, conf, stale);
+        }
+        finally {
+            RefreshingFileSystem.failing = false;
+            FileSystem.closeAll();
+        }
+    }
+
+    @Test
+    public void testRefreshAheadRacingWithEviction()
+            throws Exception
+    {
+        HadoopFileSystemCache.initialize();
+
+        FileSystem.closeAll();
+
+        Configuration conf = refreshAheadConfiguration();
+        conf.setInt("fs.cache.max-size", 1);
+        URI uri = URI.create("hdfs://refresh-ahead-eviction/");
+        UserGroupInformation alice = createKerberosUser("alice", "ticket-1");
+        UserGroupInformation bob = createKerberosUser("bob", "ticket-1");
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            FileSystem stale = getFileSystem(alice, uri, conf);
+
+            int initializations = RefreshingFileSystem.INITIALIZATIONS.get();
+            RefreshingFileSystem.blocker = release;
+            setTicket(alice, "ticket-2");
+            assertSame(getFileSystem(alice, uri, conf), stale);
+            long deadline = System.nanoTime() + SECONDS.toNanos(10);
+            while (RefreshingFileSystem.INITIALIZATIONS.get() == initializations && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            RefreshingFileSystem.blocker = null;
+
+            // the stale file system is evicted while the replacement is being created
+            FileSystem evicting = getFileSystem(bob, uri, conf);
+            release.countDown();
+
+            // the replacement is not cached in place of the evicted file system
+            FileSystem created = getFileSystem(alice, uri, conf);
+            assertNotSame(created, stale);
+            assertSame(getFileSystem(alice, uri, conf), created);
+            assertEquals(RefreshingFileSystem.INITIALIZATIONS.get() - initializations, 3);
+            assertNotSame(getFileSystem(bob, uri, conf), evicting);
+        }
+        finally {
+            RefreshingFileSystem.blocker = null;
+            release.countDown();
+            FileSystem.closeAll();
+        }
+    }
+
+    private static List<Future<FileSystem>> getConcurrently(URI uri, Configuration conf, int threads)
+            throws InterruptedException
+    {
+        ExecutorService executor = newFixedThreadPool(threads);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<FileSystem>> futures = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                futures.add(executor.submit((Callable<FileSystem>) () -> {
+                    start.await();
+                    return FileSystem.get(uri, conf);
+                }));
+            }
+            start.countDown();
+            for (Future<FileSystem> future : futures) {
+                try {
+                    future.get();
+                }
+                catch (ExecutionException ignored) {
+                }
+            }
+            return futures;
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static FileSystem getFileSystem(String user, URI uri, Configuration conf)
+            throws Exception
+    {
+        return getFileSystem(UserGroupInformation.createRemoteUser(user), uri, conf);
+    }
+
+    private static FileSystem getFileSystem(UserGroupInformation userGroupInformation, URI uri, Configuration conf)
+            throws Exception
+    {
+        return userGroupInformation.doAs((PrivilegedExceptionAction<FileSystem>) () -> FileSystem.get(uri, conf));
+    }
+
+    private static Configuration refreshAheadConfiguration()
+    {
+        Configuration conf = new Configuration();
+        conf.setClass("fs.hdfs.impl", RefreshingFileSystem.class, FileSystem.class);
+        conf.setBoolean("fs.cache.refresh-ahead.enabled", true);
+        return conf;
+    }
+
+    private static UserGroupInformation createKerberosUser(String user, String ticket)
+    {
+        UserGroupInformation userGroupInformation = UserGroupInformation.createRemoteUser(user);
+        userGroupInformation.setAuthenticationMethod(KERBEROS);
+        setTicket(userGroupInformation, ticket);
+        return userGroupInformation;
+    }
+
+    private static void setTicket(UserGroupInformation userGroupInformation, String ticket)
+    {
+        Set<Object> credentials = getSubject(userGroupInformation).getPrivateCredentials();
+        credentials.clear();
+        credentials.add(ticket);
+    }
+
+    private static FileSystem awaitReplacement(UserGroupInformation userGroupInformation, URI uri, Configuration conf, FileSystem stale)
+            throws Exception
+    {
+        long deadline = System.nanoTime() + SECONDS.toNanos(10);
+        while (System.nanoTime() < deadline) {
+            FileSystem fileSystem = getFileSystem(userGroupInformation, uri, conf);
+            if (fileSystem != stale) {
+                return fileSystem;
+            }
+            Thread.sleep(10);
+        }
+        throw new AssertionError("file system was not refreshed");
+    }
+
+    private static void awaitCloses(int closes)
+            throws InterruptedException
+    {
+        long deadline = System.nanoTime() + SECONDS.toNanos(10);
+        while (TrackingFileSystem.CLOSES.get() < closes && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(TrackingFileSystem.CLOSES.get(), closes);
+    }
+
+    public static class TrackingFileSystem
+            extends RawLocalFileSystem
+    {
+        private static final AtomicInteger CLOSES = new AtomicInteger();
+
+        @Override
+        public URI getUri()
+        {
+            return URI.create("tracking:///");
+        }
+
+        @Override
+        public void close()
+                throws IOException
+        {
+            CLOSES.incrementAndGet();
+            super.close();
+        }
+    }
+
+    public static class RefreshingFileSystem
+            extends RawLocalFileSystem
+    {
+        private static final AtomicInteger INITIALIZATIONS = new AtomicInteger();
+        private static volatile boolean failing;
+        private static volatile CountDownLatch blocker;
+
+        @Override
+        public void initialize(URI uri, Configuration conf)
+                throws IOException
+        {
+            INITIALIZATIONS.incrementAndGet();
+            CountDownLatch blocker = RefreshingFileSystem.blocker;
+            if (blocker != null) {
+                try {
+                    blocker.await();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                }
+            }
+            if (failing) {
+                throw new IOException("initialization failed");
+            }
+            super.initialize(uri, conf);
+        }
+    }
+
+    public static class SlowFileSystem
+            extends RawLocalFileSystem
+    {
+        private static final AtomicInteger INITIALIZATIONS = new AtomicInteger();
+        private static volatile boolean failing;
+
+        @Override
+        public void initialize(URI uri, Configuration conf)
+                throws IOException
+        {
+            INITIALIZATIONS.incrementAndGet();
+            try {
+                Thread.sleep(500);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+            if (failing) {
+                throw new IOException("initialization failed");
+            }
+            super.initialize(uri, conf);
+        }
+    }
 }
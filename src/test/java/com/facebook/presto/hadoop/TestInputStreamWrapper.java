@@ -0,0 +1,574 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.presto.hadoop;
+
+import com.google.common.collect.ImmutableList;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.ByteBufferPositionedReadable;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FSInputStream;
+import org.apache.hadoop.fs.FileRange;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileTailCache;
+import org.apache.hadoop.fs.LocalBlockCache;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RawLocalFileSystem;
+import org.apache.hadoop.fs.StreamCapabilities;
+import org.apache.hadoop.fs.StreamStatistics;
+import org.apache.hadoop.fs.StreamStatisticsListener;
+import org.apache.hadoop.fs.statistics.IOStatistics;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+
+import static org.apache.hadoop.util.functional.FutureIO.awaitFuture;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TestInputStreamWrapper
+{
+    private File file;
+    private byte[] data;
+
+    @BeforeClass
+    public void setUp()
+            throws IOException
+    {
+        data = new byte[20_000];
+        new Random(42).nextBytes(data);
+        file = File.createTempFile("input-stream", ".bin");
+        Files.write(file.toPath(), data);
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void tearDown()
+    {
+        file.delete();
+    }
+
+    @Test
+    public void testVectoredReadCoalescesRanges()
+            throws Exception
+    {
+        HadoopFileSystemCache.initialize();
+
+        Configuration conf = new Configuration();
+        conf.setClass("fs.counting.impl", CountingFileSystem.class, FileSystem.class);
+        conf.setInt("fs.counting.vectored-read.min-seek-size", 1000);
+        FileSystem fileSystem = FileSystem.get(URI.create("counting:///"), conf);
+
+        List<FileRange> ranges = ImmutableList.of(
+                FileRange.createFileRange(10_000, 100),
+                FileRange.createFileRange(0, 100),
+                FileRange.createFileRange(5_000, 50),
+                FileRange.createFileRange(150, 100),
+                FileRange.createFileRange(900, 10));
+
+        // the merged reads are read into heap and direct buffers of the caller's allocator
+        for (IntFunction<ByteBuffer> allocate : ImmutableList.<IntFunction<ByteBuffer>>of(ByteBuffer::allocate, ByteBuffer::allocateDirect)) {
+            CountingFileSystem.POSITIONED_READS.set(0);
+            try (FSDataInputStream in = fileSystem.open(new Path(file.toURI().getPath()))) {
+                in.readVectored(ranges, allocate);
+                for (FileRange range : ranges) {
+                    ByteBuffer buffer = range.getData().get();
+                    byte[] actual = new byte[buffer.remaining()];
+                    buffer.get(actual);
+                    assertEquals(actual, Arrays.copyOfRange(data, (int) range.getOffset(), (int) range.getOffset() + range.getLength()));
+                }
+            }
+            // [0, 910), [5000, 5050) and [10000, 10100)
+            assertEquals(CountingFileSystem.POSITIONED_READS.get(), 3);
+        }
+
+        FileSystem.closeAll();
+    }
+
+    @Test
+    public void testBlockCache()
+            throws Exception
+    {
+        HadoopFileSystemCache.initialize();
+
+        FileSystem.closeAll();
+
+        java.nio.file.Path cacheDirectory = Files.createTempDirectory("block-cache");
+        Configuration conf = new Configuration();
+        conf.setClass("fs.counting.impl", CountingFileSystem.class, FileSystem.class);
+        conf.setBoolean("fs.counting.block-cache.enabled", true);
+        conf.set(LocalBlockCache.BLOCK_CACHE_DIRECTORY_KEY, cacheDirectory.toString());
+        conf.setInt(LocalBlockCache.BLOCK_CACHE_BLOCK_SIZE_KEY, 4096);
+        FileSystem fileSystem = FileSystem.get(URI.create("counting:///"), conf);
+
+        CountingFileSystem.POSITIONED_READS.set(0);
+        try (FSDataInputStream in = fileSystem.open(new Path(file.toURI().getPath()))) {
+            byte[] buffer = new byte[data.length];
+            in.readFully(buffer);
+            assertEquals(buffer, data);
+        }
+        // one read for each block
+        assertEquals(CountingFileSystem.POSITIONED_READS.get(), 5);
+        LocalBlockCache cache = LocalBlockCache.getCaches().get(cacheDirectory.toString());
+        assertEquals(cache.getBlockCount(), 5);
+        assertEquals(cache.getMissBytes(), data.length);
+
+        try (FSDataInputStream in = fileSystem.open(new Path(file.toURI().getPath()))) {
+            byte[] buffer = new byte[1000];
+            in.readFully(9000, buffer);
+            assertEquals(buffer, Arrays.copyOfRange(data, 9000, 10_000));
+            in.seek(15_000);
+            assertEquals(in.read(), data[15_000] & 0xFF);
+        }
+        assertEquals(CountingFileSystem.POSITIONED_READS.get(), 5);
+        assertEquals(cache.getHitBytes(), 2 * 4096);
+
+        FileSystem.closeAll();
+    }
+
+    @Test
+    public void testOpenFileWithStatus()
+            throws Exception
+    {
+        HadoopFileSystemCache.initialize();
+
+        FileSystem.closeAll();
+
+        java.nio.file.Path cacheDirectory = Files.createTempDirectory("block-cache");
+        Configuration conf = new Configuration();
+        conf.setClass("fs.counting.impl", CountingFileSystem.class, FileSystem.class);
+        conf.setBoolean("fs.counting.block-cache.enabled", true);
+        conf.set(LocalBlockCache.BLOCK_CACHE_DIRECTORY_KEY, cacheDirectory.toString());
+        FileSystem fileSystem = FileSystem.get(URI.create("counting:///"), conf);
+        Path path = new Path(file.toURI().getPath());
+        FileStatus status = fileSystem.getFileStatus(path);
+
+        // the status given by the caller is used instead of requesting it again
+        CountingFileSystem.FILE_STATUS_REQUESTS.set(0);
+        try (FSDataInputStream in = awaitFuture(fileSystem.openFile(path).withFileStatus(status).build())) {
+            byte[] buffer = new byte[data.length];
+            in.readFully(buffer);
+            assertEquals(buffer, data);
+        }
+        int openFileRequests = CountingFileSystem.FILE_STATUS_REQUESTS.getAndSet(0);
+        assertEquals(LocalBlockCache.getCaches().get(cacheDirectory.toString()).getMissBytes(), data.length);
+
+        try (FSDataInputStream in = fileSystem.open(path)) {
+            assertEquals(in.read(), data[0] & 0xFF);
+        }
+        // the local file system requests the status itself when opening the file
+        assertEquals(CountingFileSystem.FILE_STATUS_REQUESTS.get(), openFileRequests + 1);
+
+        FileSystem.closeAll();
+    }
+
+    @Test
+    public void testTailCache()
+            throws Exception
+    {
+        HadoopFileSystemCache.initialize();
+
+        FileSystem.closeAll();
+
+        Configuration conf = new Configuration();
+        conf.setClass("fs.counting.impl", CountingFileSystem.class, FileSystem.class);
+        conf.setBoolean("fs.counting.tail-cache.enabled", true);
+        conf.setInt(FileTailCache.TAIL_CACHE_TAIL_SIZE_KEY, 4096);
+        FileSystem fileSystem = FileSystem.get(URI.create("counting:///"), conf);
+
+        CountingFileSystem.POSITIONED_READS.set(0);
+        for (int split = 0; split < 3; split++) {
+            try (FSDataInputStream in = fileSystem.open(new Path(file.toURI().getPath()))) {
+                byte[] footer = new byte[1000];
+                in.readFully(19_000, footer);
+                assertEquals(footer, Arrays.copyOfRange(data, 19_000, 20_000));
+
+                byte[] postscript = new byte[10];
+                in.seek(19_990);
+                in.readFully(postscript);
+                assertEquals(postscript, Arrays.copyOfRange(data, 19_990, 20_000));
+                assertEquals(in.read(), -1);
+
+                byte[] body = new byte[100];
+                in.readFully(100, body);
+                assertEquals(body, Arrays.copyOfRange(data, 100, 200));
+            }
+        }
+        // the tail is read once, and the reads before the tail are not cached
+        assertEquals(CountingFileSystem.POSITIONED_READS.get(), 4);
+        assertEquals(FileTailCache.getInstance().getHitCount(), 2);
+
+        FileSystem.closeAll();
+    }
+
+    @Test
+    public void testByteBufferRead()
+            throws Exception
+    {
+        HadoopFileSystemCache.initialize();
+
+        FileSystem.closeAll();
+
+        Configuration conf = new Configuration();
+        conf.setClass("fs.counting.impl", CountingFileSystem.class, FileSystem.class);
+        FileSystem fileSystem = FileSystem.get(URI.create("counting:///"), conf);
+
+        try (FSDataInputStream in = fileSystem.open(new Path(file.toURI().getPath()))) {
+            assertTrue(in.hasCapability(StreamCapabilities.READBYTEBUFFER));
+            assertTrue(in.hasCapability(StreamCapabilities.PREADBYTEBUFFER));
+
+            // larger than the transfer buffer
+            ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+            while (direct.hasRemaining()) {
+                if (in.read(direct) < 0) {
+                    break;
+                }
+            }
+            assertEquals(toArray(direct), data);
+            direct.clear();
+            assertEquals(in.read(direct), -1);
+
+            ByteBuffer positioned = ByteBuffer.allocateDirect(1000);
+            in.readFully(5_000, positioned);
+            assertEquals(toArray(positioned), Arrays.copyOfRange(data, 5_000, 6_000));
+
+            ByteBuffer heap = ByteBuffer.allocate(1100);
+            heap.position(100);
+            assertEquals(in.read(100, heap), 1000);
+            assertEquals(heap.position(), 1100);
+            assertEquals(Arrays.copyOfRange(heap.array(), 100, 1100), Arrays.copyOfRange(data, 100, 1100));
+        }
+
+        FileSystem.closeAll();
+    }
+
+    @Test
+    public void testStreamStatistics()
+            throws Exception
+    {
+        HadoopFileSystemCache.initialize();
+
+        FileSystem.closeAll();
+
+        Configuration conf = new Configuration();
+        conf.setClass("fs.counting.impl", CountingFileSystem.class, FileSystem.class);
+        conf.setBoolean(StreamStatistics.STREAM_STATISTICS_ENABLED_KEY, true);
+        conf.setClass(StreamStatistics.STREAM_STATISTICS_LISTENER_KEY, CollectingListener.class, StreamStatisticsListener.class);
+        FileSystem fileSystem = FileSystem.get(URI.create("counting:///"), conf);
+
+        CollectingListener.CLOSED.clear();
+        try (FSDataInputStream in = fileSystem.open(new Path(file.toURI().getPath()))) {
+            in.readFully(new byte[1000]);
+            in.seek(5_000);
+            in.readFully(new byte[100]);
+            in.readFully(100, new byte[10]);
+
+            IOStatistics statistics = in.getIOStatistics();
+            assertEquals(statistics.counters().get(StreamStatistics.BYTES_READ).longValue(), 1110);
+            assertEquals(statistics.counters().get(StreamStatistics.SEEK_OPERATIONS).longValue(), 1);
+            assertEquals(statistics.counters().get(StreamStatistics.SEEK_DISTANCE).longValue(), 4000);
+            assertTrue(statistics.gauges().get(StreamStatistics.TIME_TO_FIRST_BYTE_NANOS) > 0);
+        }
+
+        File output = File.createTempFile("stream-statistics", ".bin");
+        try (FSDataOutputStream out = fileSystem.create(new Path(output.toURI().getPath()), true)) {
+            out.write(new byte[100]);
+            out.writeInt(42);
+        }
+        finally {
+            output.delete();
+        }
+
+        assertEquals(CollectingListener.CLOSED.size(), 2);
+        StreamStatistics readStatistics = CollectingListener.CLOSED.get(0);
+        assertEquals(readStatistics.getBytesRead(), 1110);
+        assertTrue(readStatistics.getReadOperations() >= 3);
+        assertTrue(readStatistics.getBlockedNanos() > 0);
+        StreamStatistics writeStatistics = CollectingListener.CLOSED.get(1);
+        assertEquals(writeStatistics.getBytesWritten(), 104);
+        assertEquals(writeStatistics.getBytesRead(), 0);
+
+        FileSystem.closeAll();
+    }
+
+    @Test
+    public void testStreamStatisticsCapabilities()
+            throws Exception
+    {
+        HadoopFileSystemCache.initialize();
+
+        FileSystem.closeAll();
+
+        Configuration conf = new Configuration();
+        conf.setClass("fs.pread.impl", PositionedByteBufferFileSystem.class, FileSystem.class);
+        conf.setBoolean(StreamStatistics.STREAM_STATISTICS_ENABLED_KEY, true);
+        FileSystem fileSystem = FileSystem.get(URI.create("pread:///"), conf);
+
+        PositionedByteBufferFileSystem.BYTE_BUFFER_READS.set(0);
+        try (FSDataInputStream in = fileSystem.open(new Path(file.toURI().getPath()))) {
+            assertTrue(in.hasCapability(StreamCapabilities.PREADBYTEBUFFER));
+            assertTrue(in.hasCapability(StreamCapabilities.IOSTATISTICS));
+            assertFalse(in.hasCapability(StreamCapabilities.HSYNC));
+
+            // the positioned read goes through the instrumented stream to the underlying stream
+            ByteBuffer positioned = ByteBuffer.allocateDirect(1000);
+            in.readFully(5_000, positioned);
+            assertEquals(toArray(positioned), Arrays.copyOfRange(data, 5_000, 6_000));
+            assertEquals(PositionedByteBufferFileSystem.BYTE_BUFFER_READS.get(), 1);
+            assertEquals(in.getIOStatistics().counters().get(StreamStatistics.BYTES_READ).longValue(), 1000);
+        }
+
+        FileSystem.closeAll();
+    }
+
+    @Test
+    public void testParallelRead()
+            throws Exception
+    {
+        HadoopFileSystemCache.initialize();
+
+        FileSystem.closeAll();
+
+        Configuration conf = new Configuration();
+        conf.setClass("fs.counting.impl", CountingFileSystem.class, FileSystem.class);
+        conf.setBoolean("fs.counting.parallel-read.enabled", true);
+        conf.setInt("fs.counting.parallel-read.streams", 3);
+        conf.setInt("fs.counting.parallel-read.chunk-size", 1500);
+        conf.setLong("fs.counting.parallel-read.min-file-size", 10_000);
+        FileSystem fileSystem = FileSystem.get(URI.create("counting:///"), conf);
+
+        CountingFileSystem.OPENED_STREAMS.set(0);
+        try (FSDataInputStream in = fileSystem.open(new Path(file.toURI().getPath()))) {
+            byte[] buffer = new byte[data.length];
+            in.readFully(buffer);
+            assertEquals(buffer, data);
+            assertEquals(in.read(), -1);
+
+            in.seek(7_000);
+            byte[] chunk = new byte[2_000];
+            in.readFully(chunk);
+            assertEquals(chunk, Arrays.copyOfRange(data, 7_000, 9_000));
+        }
+        // the primary stream, and at least one stream for the chunks
+        int openedStreams = CountingFileSystem.OPENED_STREAMS.get();
+        assertTrue(openedStreams >= 2 && openedStreams <= 4, "opened streams: " + openedStreams);
+
+        FileSystem.closeAll();
+    }
+
+    private static byte[] toArray(ByteBuffer buffer)
+    {
+        buffer.flip();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    public static class CollectingListener
+            implements StreamStatisticsListener
+    {
+        static final List<StreamStatistics> CLOSED = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void streamClosed(StreamStatistics statistics)
+        {
+            CLOSED.add(statistics);
+        }
+    }
+
+    /**
+     * Local file system with streams that do not implement vectored reads, and count opened streams and positioned reads.
+     */
+    public static class PositionedByteBufferFileSystem
+            extends RawLocalFileSystem
+    {
+        static final AtomicInteger BYTE_BUFFER_READS = new AtomicInteger();
+
+        @Override
+        public URI getUri()
+        {
+            return URI.create("pread:///");
+        }
+
+        @Override
+        public FSDataInputStream open(Path f, int bufferSize)
+                throws IOException
+        {
+            final FSDataInputStream in = super.open(f, bufferSize);
+            return new FSDataInputStream(new PositionedByteBufferInputStream(in));
+        }
+
+        private static class PositionedByteBufferInputStream
+                extends FSInputStream
+                implements ByteBufferPositionedReadable, StreamCapabilities
+        {
+            private final FSDataInputStream in;
+
+            public PositionedByteBufferInputStream(FSDataInputStream in)
+            {
+                this.in = in;
+            }
+
+            @Override
+            public int read(long position, ByteBuffer buffer)
+                    throws IOException
+            {
+                BYTE_BUFFER_READS.incrementAndGet();
+                byte[] bytes = new byte[buffer.remaining()];
+                int read = in.read(position, bytes, 0, bytes.length);
+                if (read > 0) {
+                    buffer.put(bytes, 0, read);
+                }
+                return read;
+            }
+
+            @Override
+            public void readFully(long position, ByteBuffer buffer)
+                    throws IOException
+            {
+                BYTE_BUFFER_READS.incrementAndGet();
+                byte[] bytes = new byte[buffer.remaining()];
+                in.readFully(position, bytes);
+                buffer.put(bytes);
+            }
+
+            @Override
+            public boolean hasCapability(String capability)
+            {
+                return StreamCapabilities.PREADBYTEBUFFER.equals(capability);
+            }
+
+            @Override
+            public void seek(long position)
+                    throws IOException
+            {
+                in.seek(position);
+            }
+
+            @Override
+            public long getPos()
+                    throws IOException
+            {
+                return in.getPos();
+            }
+
+            @Override
+            public boolean seekToNewSource(long targetPosition)
+            {
+                return false;
+            }
+
+            @Override
+            public int read()
+                    throws IOException
+            {
+                return in.read();
+            }
+
+            @Override
+            public void close()
+                    throws IOException
+            {
+                in.close();
+            }
+        }
+    }
+
+    public static class CountingFileSystem
+            extends RawLocalFileSystem
+    {
+        static final AtomicInteger POSITIONED_READS = new AtomicInteger();
+        static final AtomicInteger OPENED_STREAMS = new AtomicInteger();
+        static final AtomicInteger FILE_STATUS_REQUESTS = new AtomicInteger();
+
+        @Override
+        public URI getUri()
+        {
+            return URI.create("counting:///");
+        }
+
+        @Override
+        public FileStatus getFileStatus(Path f)
+                throws IOException
+        {
+            FILE_STATUS_REQUESTS.incrementAndGet();
+            return super.getFileStatus(f);
+        }
+
+        @Override
+        public FSDataInputStream open(Path f, int bufferSize)
+                throws IOException
+        {
+            OPENED_STREAMS.incrementAndGet();
+            final FSDataInputStream in = super.open(f, bufferSize);
+            return new FSDataInputStream(new FSInputStream()
+            {
+                @Override
+                public void seek(long position)
+                        throws IOException
+                {
+                    in.seek(position);
+                }
+
+                @Override
+                public long getPos()
+                        throws IOException
+                {
+                    return in.getPos();
+                }
+
+                @Override
+                public boolean seekToNewSource(long targetPosition)
+                {
+                    return false;
+                }
+
+                @Override
+                public int read()
+                        throws IOException
+                {
+                    return in.read();
+                }
+
+                @Override
+                public void readFully(long position, byte[] buffer, int offset, int length)
+                        throws IOException
+                {
+                    POSITIONED_READS.incrementAndGet();
+                    in.readFully(position, buffer, offset, length);
+                }
+
+                @Override
+                public void close()
+                        throws IOException
+                {
+                    in.close();
+                }
+            });
+        }
+    }
+}
@@ -13,16 +13,32 @@
  */
 package com.facebook.presto.hadoop;
 
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RawLocalFileSystem;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.util.ByteBufferLineReader;
 import org.apache.hadoop.util.LineReader;
+import org.apache.hadoop.util.ParallelLineReader;
 import org.testng.annotations.Test;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
 import static org.testng.Assert.fail;
 
 public class TestLineReader
@@ -165,4 +181,410 @@ public class TestLineReader
             assertEquals(e.getMessage(), "Too many bytes before delimiter: 10");
         }
     }
+
+    @Test
+    public void testDefaultReaderLineTerminators()
+            throws IOException
+    {
+        Random random = new Random(42);
+        // mostly long runs without terminators, to exercise the word scan
+        byte[] alphabet = "abcdefghijklmnopqrstuvwxyz\r\n".getBytes(UTF_8);
+        for (int iteration = 0; iteration < 500; iteration++) {
+            byte[] input = randomInput(random, alphabet, 200);
+            int bufferSize = 1 + random.nextInt(40);
+            LineReader reader = new LineReader(new ByteArrayInputStream(input), bufferSize);
+
+            int position = 0;
+            Text str = new Text();
+            while (true) {
+                int consumed = reader.readLine(str);
+                if (consumed == 0) {
+                    break;
+                }
+                int end = position;
+                while (end < input.length && input[end] != '\r' && input[end] != '\n') {
+                    end++;
+                }
+                int next = end;
+                if (next < input.length) {
+                    next += (input[next] == '\r' && next + 1 < input.length && input[next + 1] == '\n') ? 2 : 1;
+                }
+                assertEquals(str.copyBytes(), Arrays.copyOfRange(input, position, end), "buffer size " + bufferSize + ", input " + Arrays.toString(input));
+                assertEquals(consumed, next - position);
+                position = next;
+            }
+            assertEquals(position, input.length);
+        }
+    }
+
+    @Test
+    public void testCustomReaderDelimiters()
+            throws IOException
+    {
+        Random random = new Random(42);
+        for (int iteration = 0; iteration < 2000; iteration++) {
+            // small alphabets produce many partial and overlapping matches
+            byte[] delimiter = randomBytes(random, 1 + random.nextInt(6), 2);
+            byte[] input = randomBytes(random, random.nextInt(100), 3);
+            int bufferSize = 1 + random.nextInt(20);
+            String message = "delimiter " + Arrays.toString(delimiter) + ", buffer size " + bufferSize + ", input " + Arrays.toString(input);
+
+            List<String> expected = splitLines(input, delimiter);
+            List<String> actual = readLines(new LineReader(new ByteArrayInputStream(input), bufferSize, delimiter)::readLine);
+            assertEquals(actual, expected, message);
+
+            if (!recurs(delimiter[0], delimiter)) {
+                // the previous implementation misses delimiters that start within a partial match
+                assertEquals(readLegacyLines(input, bufferSize, delimiter), actual, message);
+            }
+        }
+    }
+
+    @Test
+    public void testCustomReaderDelimiterAcrossBuffers()
+            throws IOException
+    {
+        byte[] input = "xaaabyaab".getBytes(UTF_8);
+        byte[] delimiter = "aab".getBytes(UTF_8);
+        for (int bufferSize = 1; bufferSize <= input.length; bufferSize++) {
+            LineReader reader = new LineReader(new ByteArrayInputStream(input), bufferSize, delimiter);
+            assertEquals(readLines(reader::readLine), Arrays.asList("xa:5", "y:4"), "buffer size " + bufferSize);
+        }
+    }
+
+    @Test
+    public void testReadLineOffsets()
+            throws IOException
+    {
+        Random random = new Random(42);
+        byte[] alphabet = "ab\r\n".getBytes(UTF_8);
+        for (int iteration = 0; iteration < 1000; iteration++) {
+            byte[] input = randomInput(random, alphabet, 200);
+            byte[] delimiter = random.nextBoolean() ? null : randomBytes(random, 1 + random.nextInt(3), 2);
+            int bufferSize = 1 + random.nextInt(40);
+            int maxLines = 1 + random.nextInt(5);
+
+            List<String> expected = readLines(createReader(input, bufferSize, delimiter)::readLine);
+            assertEquals(readLinesInBatches(createReader(input, bufferSize, delimiter), maxLines), expected, "buffer size " + bufferSize + ", input " + Arrays.toString(input));
+        }
+    }
+
+    @Test
+    public void testReadLineOffsetsOverriddenReadLine()
+            throws IOException
+    {
+        // like a split line reader, which stops reading at the end of its split
+        LineReader reader = new LineReader(new ByteArrayInputStream("a\nb\n".getBytes(UTF_8)))
+        {
+            @Override
+            public int readLine(Text str, int maxLineLength, int maxBytesToConsume)
+                    throws IOException
+            {
+                return 0;
+            }
+        };
+        try {
+            reader.readLineOffsets(new int[3], new int[2]);
+            fail("expected UnsupportedOperationException");
+        }
+        catch (UnsupportedOperationException e) {
+            assertTrue(e.getMessage().contains("overrides readLine"), e.getMessage());
+        }
+    }
+
+    @Test
+    public void testByteBufferReader()
+            throws IOException
+    {
+        Random random = new Random(42);
+        byte[] alphabet = "ab\r\n".getBytes(UTF_8);
+        for (int iteration = 0; iteration < 1000; iteration++) {
+            byte[] input = randomInput(random, alphabet, 200);
+            byte[] delimiter = random.nextBoolean() ? null : randomBytes(random, 1 + random.nextInt(3), 2);
+            List<String> expected = readLines(createReader(input, 1 + random.nextInt(40), delimiter)::readLine);
+
+            // the input starts after the position of the buffer
+            ByteBuffer heap = ByteBuffer.allocate(input.length + 3);
+            heap.position(3);
+            heap.put(input);
+            heap.position(3);
+            assertEquals(readLines(new ByteBufferLineReader(heap, delimiter)::readLine), expected, "input " + Arrays.toString(input));
+            assertEquals(heap.position(), 3);
+
+            ByteBuffer direct = ByteBuffer.allocateDirect(input.length);
+            direct.put(input);
+            direct.flip();
+            assertEquals(readLines(new ByteBufferLineReader(direct, delimiter)::readLine), expected, "input " + Arrays.toString(input));
+        }
+    }
+
+    @Test
+    public void testByteBufferReaderLimits()
+            throws IOException
+    {
+        ByteBuffer input = ByteBuffer.wrap("Hello world! Goodbye world!\n".getBytes(UTF_8));
+        Text str = new Text();
+
+        // the rest of the line is discarded
+        ByteBufferLineReader reader = new ByteBufferLineReader(input);
+        assertEquals(reader.readLine(str, 0, 30), 28);
+        assertEquals(str, new Text());
+        assertEquals(reader.readLine(str), 0);
+
+        try {
+            new ByteBufferLineReader(input).readLine(str, 10, 100);
+            fail("Expected exception");
+        }
+        catch (TextLineLengthLimitExceededException e) {
+            assertEquals(e.getMessage(), "Too many bytes before newline: 10");
+        }
+
+        try {
+            new ByteBufferLineReader(input, "!".getBytes(UTF_8)).readLine(str, 100, 5);
+            fail("Expected exception");
+        }
+        catch (TextLineLengthLimitExceededException e) {
+            assertEquals(e.getMessage(), "Too many bytes before delimiter: 5");
+        }
+    }
+
+    @Test
+    public void testParallelReader()
+            throws IOException
+    {
+        FileSystem fileSystem = new RawLocalFileSystem();
+        fileSystem.initialize(URI.create("file:///"), new Configuration());
+        ForkJoinPool pool = new ForkJoinPool(4);
+        File file = File.createTempFile("parallel-line-reader", ".txt");
+        try {
+            Random random = new Random(42);
+            byte[] alphabet = "abc\r\n".getBytes(UTF_8);
+            for (int iteration = 0; iteration < 200; iteration++) {
+                byte[] input = randomInput(random, alphabet, 300);
+                // includes delimiters that overlap themselves, which are read as one chunk
+                byte[] delimiter = random.nextBoolean() ? null : randomBytes(random, 1 + random.nextInt(3), 3);
+                Files.write(file.toPath(), input);
+                String message = "delimiter " + Arrays.toString(delimiter) + ", input " + Arrays.toString(input);
+
+                final List<String> lines = new ArrayList<>();
+                ParallelLineReader reader = new ParallelLineReader(fileSystem, new Path(file.toURI()), input.length, 1 + random.nextInt(30), delimiter, pool);
+                reader.forEachLine(1 + random.nextInt(100), new ParallelLineReader.LineConsumer()
+                {
+                    @Override
+                    public void accept(Text line)
+                    {
+                        lines.add(line.toString());
+                    }
+                });
+                List<String> expected = new ArrayList<>();
+                for (String line : readLines(createReader(input, 1 + random.nextInt(40), delimiter)::readLine)) {
+                    expected.add(line.substring(0, line.lastIndexOf(':')));
+                }
+                assertEquals(lines, expected, message);
+
+                List<Long> consumed = reader.processChunks(new ParallelLineReader.ChunkProcessor<Long>()
+                {
+                    @Override
+                    public Long process(ParallelLineReader.Lines lines)
+                            throws IOException
+                    {
+                        long bytes = 0;
+                        Text line = new Text();
+                        for (int read = lines.readLine(line); read > 0; read = lines.readLine(line)) {
+                            bytes += read;
+                        }
+                        return bytes;
+                    }
+                });
+                assertEquals(consumed.size(), reader.getChunkCount());
+                long total = 0;
+                for (long bytes : consumed) {
+                    total += bytes;
+                }
+                // the lines of the chunks cover the whole file
+                assertEquals(total, input.length, message);
+            }
+        }
+        finally {
+            file.delete();
+            pool.shutdownNow();
+        }
+    }
+
+    private static LineReader createReader(byte[] input, int bufferSize, byte[] delimiter)
+    {
+        if (delimiter == null) {
+            return new LineReader(new ByteArrayInputStream(input), bufferSize);
+        }
+        return new LineReader(new ByteArrayInputStream(input), bufferSize, delimiter);
+    }
+
+    private static List<String> readLinesInBatches(LineReader reader, int maxLines)
+            throws IOException
+    {
+        List<String> lines = new ArrayList<>();
+        int[] offsets = new int[maxLines + 1];
+        int[] lengths = new int[maxLines];
+        Text str = new Text();
+        while (true) {
+            int count = reader.readLineOffsets(offsets, lengths);
+            if (count < 0) {
+                return lines;
+            }
+            if (count == 0) {
+                int consumed = reader.readLine(str);
+                if (consumed == 0) {
+                    return lines;
+                }
+                lines.add(str + ":" + consumed);
+            }
+            for (int i = 0; i < count; i++) {
+                String line = new String(reader.getBuffer(), offsets[i], lengths[i], UTF_8);
+                lines.add(line + ":" + (offsets[i + 1] - offsets[i]));
+            }
+        }
+    }
+
+    private static byte[] randomInput(Random random, byte[] alphabet, int maxLength)
+    {
+        byte[] input = new byte[random.nextInt(maxLength)];
+        for (int i = 0; i < input.length; i++) {
+            input[i] = alphabet[random.nextInt(alphabet.length)];
+        }
+        return input;
+    }
+
+    private static byte[] randomBytes(Random random, int length, int alphabetSize)
+    {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) ('a' + random.nextInt(alphabetSize));
+        }
+        return bytes;
+    }
+
+    private static boolean recurs(byte value, byte[] delimiter)
+    {
+        for (int i = 1; i < delimiter.length; i++) {
+            if (delimiter[i] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return each line followed by the number of bytes consumed to read it
+     */
+    private static List<String> readLines(LineSource reader)
+            throws IOException
+    {
+        List<String> lines = new ArrayList<>();
+        Text str = new Text();
+        while (true) {
+            int consumed = reader.readLine(str);
+            if (consumed == 0) {
+                return lines;
+            }
+            lines.add(str + ":" + consumed);
+        }
+    }
+
+    private static List<String> splitLines(byte[] input, byte[] delimiter)
+    {
+        String text = new String(input, UTF_8);
+        String separator = new String(delimiter, UTF_8);
+        List<String> lines = new ArrayList<>();
+        int position = 0;
+        while (position < text.length()) {
+            int end = text.indexOf(separator, position);
+            if (end < 0) {
+                lines.add(text.substring(position) + ":" + (text.length() - position));
+                break;
+            }
+            lines.add(text.substring(position, end) + ":" + (end + separator.length() - position));
+            position = end + separator.length();
+        }
+        return lines;
+    }
+
+    /**
+     * Lines read with the naive matching that backtracks on each mismatch, used before the delimiter was matched with KMP.
+     */
+    private static List<String> readLegacyLines(byte[] input, int bufferSize, byte[] recordDelimiterBytes)
+    {
+        ByteArrayInputStream in = new ByteArrayInputStream(input);
+        byte[] buffer = new byte[bufferSize];
+        int bufferLength = 0;
+        int bufferPosn = 0;
+        List<String> lines = new ArrayList<>();
+        while (true) {
+            Text str = new Text();
+            long bytesConsumed = 0;
+            int delPosn = 0;
+            int ambiguousByteCount = 0;
+            do {
+                int startPosn = bufferPosn;
+                if (bufferPosn >= bufferLength) {
+                    startPosn = 0;
+                    bufferPosn = 0;
+                    bufferLength = in.read(buffer, 0, bufferSize);
+                    if (bufferLength <= 0) {
+                        if (ambiguousByteCount > 0) {
+                            str.append(recordDelimiterBytes, 0, ambiguousByteCount);
+                            bytesConsumed += ambiguousByteCount;
+                        }
+                        break;
+                    }
+                }
+                for (; bufferPosn < bufferLength; ++bufferPosn) {
+                    if (buffer[bufferPosn] == recordDelimiterBytes[delPosn]) {
+                        delPosn++;
+                        if (delPosn >= recordDelimiterBytes.length) {
+                            bufferPosn++;
+                            break;
+                        }
+                    }
+                    else if (delPosn != 0) {
+                        bufferPosn -= delPosn;
+                        if (bufferPosn < -1) {
+                            bufferPosn = -1;
+                        }
+                        delPosn = 0;
+                    }
+                }
+                int readLength = bufferPosn - startPosn;
+                bytesConsumed += readLength;
+                int appendLength = readLength - delPosn;
+                bytesConsumed += ambiguousByteCount;
+                if (appendLength >= 0 && ambiguousByteCount > 0) {
+                    str.append(recordDelimiterBytes, 0, ambiguousByteCount);
+                    ambiguousByteCount = 0;
+                }
+                if (appendLength > 0) {
+                    str.append(buffer, startPosn, appendLength);
+                }
+                if (bufferPosn >= bufferLength) {
+                    if (delPosn > 0 && delPosn < recordDelimiterBytes.length) {
+                        ambiguousByteCount = delPosn;
+                        bytesConsumed -= ambiguousByteCount;
+                    }
+                }
+            }
+            while (delPosn < recordDelimiterBytes.length);
+            if (bytesConsumed == 0) {
+                return lines;
+            }
+            lines.add(str + ":" + bytesConsumed);
+        }
+    }
+
+    /**
+     * The {@code readLine(Text)} of {@link LineReader} or {@link ByteBufferLineReader}.
+     */
+    private interface LineSource
+    {
+        int readLine(Text str)
+                throws IOException;
+    }
 }
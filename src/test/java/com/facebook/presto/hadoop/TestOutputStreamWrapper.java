@@ -0,0 +1,195 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.presto.hadoop;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RawLocalFileSystem;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.util.Progressable;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class TestOutputStreamWrapper
+{
+    @Test
+    public void testWriteBehind()
+            throws Exception
+    {
+        FileSystem fileSystem = getWriteBehindFileSystem();
+        FailingFileSystem.failing = false;
+
+        byte[] data = new byte[10_500];
+        new Random(42).nextBytes(data);
+        File file = File.createTempFile("write-behind", ".bin");
+        try {
+            try (FSDataOutputStream out = fileSystem.create(new Path(file.toURI().getPath()), true)) {
+                out.write(data, 0, 10);
+                out.write(data[10]);
+                out.write(data, 11, 5_000 - 11);
+                out.hflush();
+                assertEquals(Files.size(file.toPath()), 5_000);
+                out.write(data, 5_000, data.length - 5_000);
+                assertEquals(out.getPos(), data.length);
+            }
+            assertEquals(Files.readAllBytes(file.toPath()), data);
+        }
+        finally {
+            file.delete();
+            FileSystem.closeAll();
+        }
+    }
+
+    @Test
+    public void testWriteBehindFailure()
+            throws Exception
+    {
+        FileSystem fileSystem = getWriteBehindFileSystem();
+        FailingFileSystem.failing = true;
+
+        File file = File.createTempFile("write-behind", ".bin");
+        try {
+            FSDataOutputStream out = fileSystem.create(new Path(file.toURI().getPath()), true);
+            // buffered, so the failure is not visible yet
+            out.write(new byte[500]);
+            try {
+                out.close();
+                fail("expected IOException");
+            }
+            catch (IOException e) {
+                assertTrue(e.getMessage().contains("Background write failed"), e.getMessage());
+            }
+        }
+        finally {
+            FailingFileSystem.failing = false;
+            file.delete();
+            FileSystem.closeAll();
+        }
+    }
+
+    @Test(timeOut = 10_000)
+    public void testWriteBehindError()
+            throws Exception
+    {
+        FileSystem fileSystem = getWriteBehindFileSystem();
+        FailingFileSystem.failingWithError = true;
+
+        File file = File.createTempFile("write-behind", ".bin");
+        try {
+            FSDataOutputStream out = fileSystem.create(new Path(file.toURI().getPath()), true);
+            // more than all the buffers, so the writer waits for the failed writes to free theirs
+            try {
+                out.write(new byte[5_000]);
+                out.close();
+                fail("expected IOException");
+            }
+            catch (IOException e) {
+                assertTrue(e.getMessage().contains("Background write failed"), e.getMessage());
+                assertTrue(e.getCause() instanceof AssertionError, String.valueOf(e.getCause()));
+            }
+        }
+        finally {
+            FailingFileSystem.failingWithError = false;
+            file.delete();
+            FileSystem.closeAll();
+        }
+    }
+
+    private static FileSystem getWriteBehindFileSystem()
+            throws IOException
+    {
+        HadoopFileSystemCache.initialize();
+
+        FileSystem.closeAll();
+
+        Configuration conf = new Configuration();
+        conf.setClass("fs.failing.impl", FailingFileSystem.class, FileSystem.class);
+        conf.setBoolean("fs.failing.write-behind.enabled", true);
+        conf.setInt("fs.failing.write-behind.buffer-size", 1000);
+        conf.setInt("fs.failing.write-behind.depth", 2);
+        return FileSystem.get(URI.create("failing:///"), conf);
+    }
+
+    /**
+     * Local file system with output streams that fail every write when {@link #failing}
+     * or {@link #failingWithError} is set.
+     */
+    public static class FailingFileSystem
+            extends RawLocalFileSystem
+    {
+        static volatile boolean failing;
+        static volatile boolean failingWithError;
+
+        @Override
+        public URI getUri()
+        {
+            return URI.create("failing:///");
+        }
+
+        @Override
+        public FSDataOutputStream create(Path f, FsPermission permission, boolean overwrite, int bufferSize, short replication, long blockSize, Progressable progress)
+                throws IOException
+        {
+            final FSDataOutputStream out = super.create(f, permission, overwrite, bufferSize, replication, blockSize, progress);
+            return new FSDataOutputStream(new OutputStream()
+            {
+                @Override
+                public void write(int value)
+                        throws IOException
+                {
+                    write(new byte[] {(byte) value}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] buffer, int offset, int length)
+                        throws IOException
+                {
+                    if (failing) {
+                        throw new IOException("upload failed");
+                    }
+                    if (failingWithError) {
+                        throw new AssertionError("upload failed");
+                    }
+                    out.write(buffer, offset, length);
+                }
+
+                @Override
+                public void flush()
+                        throws IOException
+                {
+                    out.flush();
+                }
+
+                @Override
+                public void close()
+                        throws IOException
+                {
+                    out.close();
+                }
+            }, null);
+        }
+    }
+}
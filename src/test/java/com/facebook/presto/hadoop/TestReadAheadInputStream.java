@@ -0,0 +1,156 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.presto.hadoop;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RawLocalFileSystem;
+import org.apache.hadoop.fs.ReadAheadInputStream;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TestReadAheadInputStream
+{
+    private static final int FILE_SIZE = 10_000;
+
+    private File file;
+    private byte[] data;
+    private FileSystem fileSystem;
+
+    @BeforeClass
+    public void setUp()
+            throws IOException
+    {
+        data = new byte[FILE_SIZE];
+        new Random(42).nextBytes(data);
+        file = File.createTempFile("read-ahead", ".bin");
+        Files.write(file.toPath(), data);
+        fileSystem = new RawLocalFileSystem();
+        fileSystem.initialize(URI.create("file:///"), new Configuration());
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void tearDown()
+    {
+        file.delete();
+    }
+
+    @Test
+    public void testSequentialRead()
+            throws IOException
+    {
+        try (FSDataInputStream in = open(1000, 3)) {
+            byte[] result = new byte[FILE_SIZE];
+            int offset = 0;
+            while (true) {
+                int read = in.read(result, offset, Math.min(333, FILE_SIZE - offset));
+                if (read <= 0) {
+                    break;
+                }
+                offset += read;
+            }
+            assertEquals(offset, FILE_SIZE);
+            assertEquals(result, data);
+            assertEquals(in.read(), -1);
+        }
+    }
+
+    @Test
+    public void testSeek()
+            throws IOException
+    {
+        try (FSDataInputStream in = open(1000, 2)) {
+            assertEquals(in.read(), data[0] & 0xFF);
+
+            // skips within the fetched data
+            in.seek(500);
+            assertRead(in, 500, 100);
+            in.seek(1500);
+            assertRead(in, 1500, 700);
+            in.seek(1200);
+            assertRead(in, 1200, 100);
+            assertTrue(((ReadAheadInputStream) in.getWrappedStream()).isReadAheadEnabled());
+
+            // random seeks disable the read-ahead
+            in.seek(9000);
+            assertRead(in, 9000, 100);
+            in.seek(100);
+            assertRead(in, 100, 100);
+            in.seek(5000);
+            assertFalse(((ReadAheadInputStream) in.getWrappedStream()).isReadAheadEnabled());
+            assertRead(in, 5000, 2000);
+
+            in.seek(FILE_SIZE);
+            assertEquals(in.read(), -1);
+        }
+    }
+
+    @Test
+    public void testSequentialReadsBetweenSeeks()
+            throws IOException
+    {
+        try (FSDataInputStream in = open(1000, 2)) {
+            // seeks separated by reads past the end of a buffer are not consecutive random seeks
+            for (int position : new int[] {5000, 100, 8000, 2500, 6000}) {
+                in.seek(position);
+                assertRead(in, position, 1500);
+            }
+            assertTrue(((ReadAheadInputStream) in.getWrappedStream()).isReadAheadEnabled());
+        }
+    }
+
+    @Test
+    public void testPositionedRead()
+            throws IOException
+    {
+        try (FSDataInputStream in = open(1000, 2)) {
+            assertRead(in, 0, 10);
+            byte[] buffer = new byte[100];
+            in.readFully(8000, buffer);
+            assertEquals(buffer, Arrays.copyOfRange(data, 8000, 8100));
+            assertEquals(in.getPos(), 10);
+            assertRead(in, 10, 1990);
+            assertTrue(((ReadAheadInputStream) in.getWrappedStream()).isReadAheadEnabled());
+        }
+    }
+
+    private FSDataInputStream open(int bufferSize, int depth)
+            throws IOException
+    {
+        return new FSDataInputStream(new ReadAheadInputStream(fileSystem.open(new Path(file.toURI())), bufferSize, depth));
+    }
+
+    private void assertRead(FSDataInputStream in, int position, int length)
+            throws IOException
+    {
+        byte[] buffer = new byte[length];
+        in.readFully(buffer);
+        assertEquals(buffer, Arrays.copyOfRange(data, position, position + length));
+        assertEquals(in.getPos(), position + length);
+    }
+}
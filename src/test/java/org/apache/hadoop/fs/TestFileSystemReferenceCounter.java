@@ -0,0 +1,105 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs;
+
+import org.apache.hadoop.fs.FileSystemReferenceCounter.StreamReference;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class TestFileSystemReferenceCounter
+{
+    @Test
+    public void testClosedByLastReference()
+            throws IOException
+    {
+        ClosingFileSystem fileSystem = new ClosingFileSystem();
+        FileSystemReferenceCounter counter = new FileSystemReferenceCounter(fileSystem);
+        StreamReference first = counter.retainStream();
+        StreamReference second = counter.retainStream();
+        assertEquals(counter.getStreamReferenceCount(), 2);
+
+        counter.releaseOwner();
+        counter.releaseOwner();
+        assertEquals(counter.getStreamReferenceCount(), 2);
+        assertFalse(counter.isClosed());
+
+        assertTrue(first.release());
+        // a stream reference is released only once
+        assertFalse(first.release());
+        assertEquals(counter.getStreamReferenceCount(), 1);
+        assertEquals(fileSystem.closes.get(), 0);
+
+        assertTrue(second.release());
+        assertTrue(counter.isClosed());
+        assertEquals(fileSystem.closes.get(), 1);
+
+        try {
+            counter.retainStream();
+            fail("expected IOException");
+        }
+        catch (IOException e) {
+            assertEquals(e.getMessage(), "Filesystem closed");
+        }
+    }
+
+    @Test
+    public void testClosedByOwner()
+            throws IOException
+    {
+        ClosingFileSystem fileSystem = new ClosingFileSystem();
+        FileSystemReferenceCounter counter = new FileSystemReferenceCounter(fileSystem);
+        counter.retainStream().release();
+        assertFalse(counter.isClosed());
+
+        counter.releaseOwner();
+        assertTrue(counter.isClosed());
+        counter.close();
+        assertEquals(fileSystem.closes.get(), 1);
+    }
+
+    @Test
+    public void testMarkClosed()
+            throws IOException
+    {
+        ClosingFileSystem fileSystem = new ClosingFileSystem();
+        FileSystemReferenceCounter counter = new FileSystemReferenceCounter(fileSystem);
+        StreamReference reference = counter.retainStream();
+        counter.markClosed();
+        assertTrue(counter.isClosed());
+
+        reference.release();
+        counter.releaseOwner();
+        // the caller that marked the file system closed closes it
+        assertEquals(fileSystem.closes.get(), 0);
+    }
+
+    private static class ClosingFileSystem
+            extends RawLocalFileSystem
+    {
+        private final AtomicInteger closes = new AtomicInteger();
+
+        @Override
+        public void close()
+        {
+            closes.incrementAndGet();
+        }
+    }
+}
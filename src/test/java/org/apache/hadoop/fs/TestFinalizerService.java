@@ -0,0 +1,197 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs;
+
+import org.apache.hadoop.conf.Configuration;
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.apache.hadoop.fs.FinalizerService.FINALIZER_CLEANUP_THREADS_KEY;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class TestFinalizerService
+{
+    @Test
+    public void testCleanupTimeout()
+            throws Exception
+    {
+        FinalizerService finalizerService = new FinalizerService(10);
+        finalizerService.setCleanupThreads(1);
+        finalizerService.setCleanupTimeoutMillis(100);
+        finalizerService.start();
+        try {
+            AtomicBoolean interrupted = new AtomicBoolean();
+            AtomicBoolean interruptLeaked = new AtomicBoolean(true);
+            CountDownLatch done = new CountDownLatch(2);
+            // the first cleanup ignores the interrupt, so the service has to clear it
+            addCollectedFinalizer(finalizerService, () -> {
+                while (!Thread.currentThread().isInterrupted()) {
+                    Thread.yield();
+                }
+                interrupted.set(true);
+                done.countDown();
+            });
+            awaitUntil(interrupted::get);
+            addCollectedFinalizer(finalizerService, () -> {
+                interruptLeaked.set(Thread.currentThread().isInterrupted());
+                done.countDown();
+            });
+            assertTrue(done.await(10, SECONDS));
+
+            assertEquals(finalizerService.getTimedOutCleanups(), 1);
+            assertFalse(interruptLeaked.get());
+        }
+        finally {
+            finalizerService.shutdown();
+        }
+    }
+
+    @Test
+    public void testFullQueueBlocksFinalizerThread()
+            throws Exception
+    {
+        FinalizerService finalizerService = new FinalizerService(1);
+        finalizerService.setCleanupThreads(1);
+        finalizerService.setCleanupTimeoutMillis(100);
+        finalizerService.start();
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            List<String> threads = new CopyOnWriteArrayList<>();
+            AtomicInteger finished = new AtomicInteger();
+            for (int i = 0; i < 3; i++) {
+                addCollectedFinalizer(finalizerService, () -> {
+                    threads.add(Thread.currentThread().getName());
+                    try {
+                        release.await();
+                    }
+                    catch (InterruptedException e) {
+                        // the cleanup timeout interrupts the worker
+                    }
+                    finished.incrementAndGet();
+                });
+            }
+            // the finalizer thread waits for room in the queue rather than running the last cleanup itself
+            awaitUntil(() -> finished.get() == 3);
+            assertEquals(threads.size(), 3);
+            assertFalse(threads.contains("hadoop-finalizer-service"), threads.toString());
+            assertEquals(finalizerService.getTimedOutCleanups(), 3);
+            awaitUntil(() -> finalizerService.getPendingCleanups() == 0);
+        }
+        finally {
+            release.countDown();
+            finalizerService.shutdown();
+        }
+    }
+
+    @Test
+    public void testConfiguredCleanupThreads()
+    {
+        FinalizerService finalizerService = FinalizerService.getInstance();
+        int cleanupThreads = finalizerService.getCleanupThreads();
+        try {
+            Configuration conf = new Configuration(false);
+            assertEquals(FinalizerService.getInstance(conf).getCleanupThreads(), cleanupThreads);
+
+            conf.setInt(FINALIZER_CLEANUP_THREADS_KEY, cleanupThreads + 2);
+            assertSame(FinalizerService.getInstance(conf), finalizerService);
+            assertEquals(finalizerService.getCleanupThreads(), cleanupThreads + 2);
+        }
+        finally {
+            finalizerService.setCleanupThreads(cleanupThreads);
+        }
+    }
+
+    @Test
+    public void testShutdown()
+            throws Exception
+    {
+        FinalizerService finalizerService = new FinalizerService(10);
+        finalizerService.setCleanupThreads(1);
+        finalizerService.start();
+
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicBoolean finished = new AtomicBoolean();
+        addCollectedFinalizer(finalizerService, () -> {
+            started.countDown();
+            try {
+                release.await();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            finished.set(true);
+        });
+        assertTrue(started.await(10, SECONDS));
+
+        // shutdown waits for the running cleanup
+        Thread shutdown = new Thread(() -> {
+            try {
+                finalizerService.shutdown();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        shutdown.start();
+        shutdown.join(100);
+        assertTrue(shutdown.isAlive());
+        release.countDown();
+        shutdown.join(SECONDS.toMillis(10));
+        assertFalse(shutdown.isAlive());
+        assertTrue(finished.get());
+
+        try {
+            finalizerService.addFinalizer(new Object(), () -> {});
+            fail("expected IllegalStateException");
+        }
+        catch (IllegalStateException e) {
+            assertEquals(e.getMessage(), "FinalizerService is shut down");
+        }
+    }
+
+    private static void addCollectedFinalizer(FinalizerService finalizerService, Runnable cleanup)
+            throws InterruptedException
+    {
+        int registered = finalizerService.getRegisteredFinalizers();
+        finalizerService.addFinalizer(new Object(), cleanup);
+        awaitUntil(() -> {
+            System.gc();
+            return finalizerService.getRegisteredFinalizers() == registered;
+        });
+    }
+
+    private static void awaitUntil(BooleanSupplier condition)
+            throws InterruptedException
+    {
+        long deadline = System.nanoTime() + SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() - deadline > 0) {
+                fail("condition not met within 10 seconds");
+            }
+            Thread.sleep(10);
+        }
+    }
+}
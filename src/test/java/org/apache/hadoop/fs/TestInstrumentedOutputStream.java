@@ -0,0 +1,65 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs;
+
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static java.util.Locale.ENGLISH;
+import static org.apache.hadoop.fs.StreamCapabilities.ABORTABLE_STREAM;
+import static org.apache.hadoop.fs.StreamCapabilities.DROPBEHIND;
+import static org.apache.hadoop.fs.StreamCapabilities.HFLUSH;
+import static org.apache.hadoop.fs.StreamCapabilities.HSYNC;
+import static org.apache.hadoop.fs.StreamCapabilities.IOSTATISTICS;
+import static org.apache.hadoop.fs.StreamCapabilities.IOSTATISTICS_CONTEXT;
+import static org.apache.hadoop.fs.StreamCapabilities.READAHEAD;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TestInstrumentedOutputStream
+{
+    @Test
+    public void testCapabilities()
+            throws Exception
+    {
+        FSDataOutputStream out = new FSDataOutputStream(new AllCapabilitiesOutputStream(), null);
+        try (InstrumentedOutputStream instrumented = new InstrumentedOutputStream(out, new StreamStatistics(new Path("/capabilities"), System.nanoTime()), null)) {
+            // the operations delegated by the stream
+            assertTrue(instrumented.hasCapability(HFLUSH));
+            assertTrue(instrumented.hasCapability(HSYNC));
+            assertTrue(instrumented.hasCapability(ABORTABLE_STREAM));
+            assertTrue(instrumented.hasCapability(HFLUSH.toUpperCase(ENGLISH)));
+
+            // the statistics of the stream itself
+            assertTrue(instrumented.hasCapability(IOSTATISTICS));
+
+            // operations the stream does not delegate
+            assertFalse(instrumented.hasCapability(DROPBEHIND));
+            assertFalse(instrumented.hasCapability(IOSTATISTICS_CONTEXT));
+            assertFalse(instrumented.hasCapability(READAHEAD));
+        }
+    }
+
+    private static class AllCapabilitiesOutputStream
+            extends ByteArrayOutputStream
+            implements StreamCapabilities
+    {
+        @Override
+        public boolean hasCapability(String capability)
+        {
+            return true;
+        }
+    }
+}
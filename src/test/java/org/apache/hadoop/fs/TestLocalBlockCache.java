@@ -0,0 +1,206 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs;
+
+import org.apache.hadoop.conf.Configuration;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.apache.hadoop.fs.LocalBlockCache.BLOCK_CACHE_BLOCK_SIZE_KEY;
+import static org.apache.hadoop.fs.LocalBlockCache.BLOCK_CACHE_DIRECTORY_KEY;
+import static org.apache.hadoop.fs.LocalBlockCache.BLOCK_CACHE_MAX_SIZE_KEY;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class TestLocalBlockCache
+{
+    @Test
+    public void testHit()
+            throws Exception
+    {
+        Path directory = Files.createTempDirectory("block-cache");
+        LocalBlockCache cache = createCache(directory);
+        String key = LocalBlockCache.blockKey("/hit", 1, null, 0);
+        cache.put(key, "block data".getBytes(UTF_8), 5);
+
+        // each hit gets its own view of the shared mapping
+        for (int i = 0; i < 3; i++) {
+            ByteBuffer block = cache.get(key);
+            byte[] data = new byte[block.remaining()];
+            block.get(data);
+            assertEquals(new String(data, UTF_8), "block");
+        }
+        assertEquals(cache.getHitBytes(), 15);
+    }
+
+    @Test
+    public void testDeletedBlock()
+            throws Exception
+    {
+        Path directory = Files.createTempDirectory("block-cache");
+        LocalBlockCache cache = createCache(directory);
+        String key = LocalBlockCache.blockKey("/deleted", 1, null, 0);
+        cache.put(key, new byte[10], 10);
+        Files.delete(directory.resolve(key + ".block"));
+
+        assertNull(cache.get(key));
+        assertEquals(cache.getBlockCount(), 0);
+        assertEquals(cache.getSize(), 0);
+    }
+
+    @Test
+    public void testUnreadableBlock()
+            throws Exception
+    {
+        Path directory = Files.createTempDirectory("block-cache");
+        LocalBlockCache cache = createCache(directory);
+        String key = LocalBlockCache.blockKey("/unreadable", 1, null, 0);
+        cache.put(key, new byte[10], 10);
+        Path file = directory.resolve(key + ".block");
+        Files.delete(file);
+        Files.createDirectory(file);
+
+        // the block is dropped from the index, and its file is deleted
+        assertNull(cache.get(key));
+        assertEquals(cache.getBlockCount(), 0);
+        assertEquals(cache.getSize(), 0);
+        assertFalse(Files.exists(file));
+    }
+
+    @Test
+    public void testEviction()
+            throws Exception
+    {
+        Path directory = Files.createTempDirectory("block-cache");
+        Configuration conf = new Configuration(false);
+        conf.set(BLOCK_CACHE_DIRECTORY_KEY, directory.toString());
+        conf.setLong(BLOCK_CACHE_MAX_SIZE_KEY, 25);
+        LocalBlockCache cache = LocalBlockCache.getInstance(conf);
+        String first = LocalBlockCache.blockKey("/evicted", 1, null, 0);
+        String second = LocalBlockCache.blockKey("/evicted", 1, null, 1);
+        String third = LocalBlockCache.blockKey("/evicted", 1, null, 2);
+        cache.put(first, new byte[10], 10);
+        cache.put(second, new byte[10], 10);
+        cache.put(third, new byte[10], 10);
+
+        // the least recently used block is dropped from the index, and its file is deleted
+        assertEquals(cache.getBlockCount(), 2);
+        assertEquals(cache.getSize(), 20);
+        assertEquals(cache.getEvictedBlocks(), 1);
+        assertNull(cache.get(first));
+        assertFalse(Files.exists(directory.resolve(first + ".block")));
+        assertTrue(Files.exists(directory.resolve(third + ".block")));
+    }
+
+    @Test(timeOut = 10_000)
+    public void testConcurrentPositionedReads()
+            throws Exception
+    {
+        Path directory = Files.createTempDirectory("block-cache");
+        Configuration conf = new Configuration(false);
+        conf.set(BLOCK_CACHE_DIRECTORY_KEY, directory.toString());
+        conf.setInt(BLOCK_CACHE_BLOCK_SIZE_KEY, 100);
+        LocalBlockCache cache = LocalBlockCache.getInstance(conf);
+
+        // each remote read waits for the other, so the reads only complete if they fetch their blocks in parallel
+        final CountDownLatch reading = new CountDownLatch(2);
+        FSInputStream remote = new FSInputStream()
+        {
+            @Override
+            public int read(long position, byte[] buffer, int offset, int length)
+                    throws IOException
+            {
+                reading.countDown();
+                try {
+                    if (!reading.await(10, SECONDS)) {
+                        throw new IOException("reads were serialized");
+                    }
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+                Arrays.fill(buffer, offset, offset + length, (byte) (position / 100));
+                return length;
+            }
+
+            @Override
+            public int read()
+            {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public void seek(long position)
+            {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public long getPos()
+            {
+                return 0;
+            }
+
+            @Override
+            public boolean seekToNewSource(long targetPosition)
+            {
+                return false;
+            }
+        };
+        FileStatus status = new FileStatus(200, false, 1, 100, 1, new org.apache.hadoop.fs.Path("/concurrent"));
+        final CachingInputStream in = new CachingInputStream(new FSDataInputStream(remote), cache, status);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            List<Future<Byte>> reads = new ArrayList<>();
+            for (int i = 0; i < 2; i++) {
+                final long position = i * 100;
+                reads.add(executor.submit(() -> {
+                    byte[] data = new byte[10];
+                    in.readFully(position, data, 0, data.length);
+                    return data[0];
+                }));
+            }
+            assertEquals(reads.get(0).get().byteValue(), 0);
+            assertEquals(reads.get(1).get().byteValue(), 1);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static LocalBlockCache createCache(Path directory)
+            throws Exception
+    {
+        Configuration conf = new Configuration(false);
+        conf.set(BLOCK_CACHE_DIRECTORY_KEY, directory.toString());
+        return LocalBlockCache.getInstance(conf);
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs;
+
+import org.apache.hadoop.conf.Configuration;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class TestParallelRangeReader
+{
+    @Test(timeOut = 10_000)
+    public void testOpenFailureWakesWaiters()
+            throws Exception
+    {
+        BlockingOpenFileSystem fileSystem = new BlockingOpenFileSystem(true);
+        ParallelRangeReader reader = new ParallelRangeReader(fileSystem, new Path("/missing"), 4096, 1);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            Future<Integer> opening = executor.submit(() -> reader.read(0, new byte[10], 0, 10));
+            assertTrue(fileSystem.opening.await(10, SECONDS));
+            Future<Integer> waiting = executor.submit(() -> reader.read(0, new byte[10], 0, 10));
+            awaitWaiting();
+            fileSystem.release.countDown();
+
+            // the waiter opens a stream itself after the first open fails
+            assertFailure(opening, "open failed");
+            assertFailure(waiting, "open failed");
+            assertEquals(fileSystem.opens, 2);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(timeOut = 10_000)
+    public void testCloseWakesWaiters()
+            throws Exception
+    {
+        BlockingOpenFileSystem fileSystem = new BlockingOpenFileSystem(false);
+        File file = File.createTempFile("parallel-read", ".bin");
+        ParallelRangeReader reader = new ParallelRangeReader(fileSystem, new Path(file.toURI()), 4096, 1);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            Future<Integer> opening = executor.submit(() -> reader.read(0, new byte[10], 0, 10));
+            assertTrue(fileSystem.opening.await(10, SECONDS));
+            Future<Integer> waiting = executor.submit(() -> reader.read(0, new byte[10], 0, 10));
+            awaitWaiting();
+
+            reader.close();
+            assertFailure(waiting, "Stream is closed");
+            fileSystem.release.countDown();
+            assertFailure(opening, "Stream is closed");
+        }
+        finally {
+            executor.shutdownNow();
+            file.delete();
+        }
+    }
+
+    private static void awaitWaiting()
+            throws InterruptedException
+    {
+        while (true) {
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                if (thread.getState() == Thread.State.WAITING && isWaitingForStream(thread.getStackTrace())) {
+                    return;
+                }
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private static boolean isWaitingForStream(StackTraceElement[] stackTrace)
+    {
+        // waiting in Object.wait called directly from acquireStream, not in the blocked open
+        for (StackTraceElement element : stackTrace) {
+            if (!element.getClassName().equals(Object.class.getName())) {
+                return element.getClassName().equals(ParallelRangeReader.class.getName()) && element.getMethodName().equals("acquireStream");
+            }
+        }
+        return false;
+    }
+
+    private static void assertFailure(Future<Integer> future, String message)
+            throws InterruptedException
+    {
+        try {
+            future.get();
+            fail("expected IOException");
+        }
+        catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException, String.valueOf(e.getCause()));
+            assertEquals(e.getCause().getMessage(), message);
+        }
+    }
+
+    /**
+     * Local file system whose opens wait for {@link #release}, and fail
+     * when {@code failing} is set.
+     */
+    private static class BlockingOpenFileSystem
+            extends RawLocalFileSystem
+    {
+        private final boolean failing;
+        private final CountDownLatch opening = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        private volatile int opens;
+
+        public BlockingOpenFileSystem(boolean failing)
+                throws IOException
+        {
+            this.failing = failing;
+            initialize(new File("/").toURI(), new Configuration());
+        }
+
+        @Override
+        public FSDataInputStream open(Path path, int bufferSize)
+                throws IOException
+        {
+            synchronized (this) {
+                opens++;
+            }
+            opening.countDown();
+            try {
+                release.await();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+            if (failing) {
+                throw new IOException("open failed");
+            }
+            return super.open(path, bufferSize);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs;
+
+import org.apache.hadoop.conf.Configuration;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class TestReadAheadInputStream
+{
+    @Test
+    public void testRetryAfterFailedFetch()
+            throws Exception
+    {
+        byte[] data = new byte[10_000];
+        new Random(42).nextBytes(data);
+        File file = File.createTempFile("read-ahead", ".bin");
+        try {
+            Files.write(file.toPath(), data);
+            RawLocalFileSystem fileSystem = new RawLocalFileSystem();
+            fileSystem.initialize(file.getParentFile().toURI(), new Configuration());
+            final FSDataInputStream in = fileSystem.open(new Path(file.toURI()));
+            final AtomicBoolean failed = new AtomicBoolean();
+            ReadAheadInputStream.RangeReader rangeReader = new ReadAheadInputStream.RangeReader()
+            {
+                @Override
+                public int read(long position, byte[] buffer, int offset, int length)
+                        throws IOException
+                {
+                    // a transient failure of a buffer in the middle of the file
+                    if (position == 3000 && failed.compareAndSet(false, true)) {
+                        throw new IOException("transient failure");
+                    }
+                    return in.read(position, buffer, offset, length);
+                }
+
+                @Override
+                public void close()
+                {
+                }
+            };
+
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            int failures = 0;
+            try (ReadAheadInputStream stream = new ReadAheadInputStream(in, rangeReader, 1000, 4)) {
+                byte[] buffer = new byte[300];
+                while (true) {
+                    int read;
+                    try {
+                        read = stream.read(buffer, 0, buffer.length);
+                    }
+                    catch (IOException e) {
+                        assertEquals(e.getMessage(), "transient failure");
+                        failures++;
+                        continue;
+                    }
+                    if (read < 0) {
+                        break;
+                    }
+                    output.write(buffer, 0, read);
+                }
+            }
+            // the failure is only reported when no data was read before it in the same call
+            assertTrue(failures <= 1);
+            assertTrue(failed.get());
+            // the retry continues where the failed read stopped
+            assertEquals(output.toByteArray(), data);
+        }
+        finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs;
+
+import org.apache.hadoop.fs.WriteBehindOutputStream.BufferPool;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+
+public class TestWriteBehindOutputStream
+{
+    @Test
+    public void testBufferPool()
+    {
+        BufferPool pool = new BufferPool(3000);
+        byte[] first = pool.tryAcquire(1000);
+        byte[] second = pool.tryAcquire(1000);
+        assertNotNull(pool.tryAcquire(1000));
+        assertNull(pool.tryAcquire(1000));
+        assertEquals(pool.getAllocatedBytes(), 3000);
+
+        // free buffers are reused
+        pool.release(first);
+        assertSame(pool.tryAcquire(1000), first);
+
+        // free buffers of another size are dropped to make room
+        pool.release(first);
+        pool.release(second);
+        assertEquals(pool.tryAcquire(2000).length, 2000);
+        assertEquals(pool.getAllocatedBytes(), 3000);
+        assertNull(pool.tryAcquire(2000));
+    }
+
+    @Test
+    public void testWriteWithExhaustedPool()
+            throws Exception
+    {
+        BufferPool pool = new BufferPool(1000);
+        byte[] held = pool.tryAcquire(1000);
+        byte[] data = new byte[10_000];
+        new Random(42).nextBytes(data);
+
+        // without a buffer, the stream writes directly
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        try (WriteBehindOutputStream out = new WriteBehindOutputStream(new FSDataOutputStream(target, null), 1000, 2, pool)) {
+            out.write(data, 0, 5000);
+            assertEquals(target.size(), 5000);
+            out.write(data[5000]);
+            assertEquals(target.size(), 5001);
+
+            // once memory is free, the stream uses it
+            pool.release(held);
+            out.write(data, 5001, data.length - 5001);
+        }
+        assertEquals(target.toByteArray(), data);
+        assertEquals(pool.getAllocatedBytes(), 1000);
+    }
+
+    @Test
+    public void testBuffersReturnedToPool()
+            throws Exception
+    {
+        BufferPool pool = new BufferPool(10_000);
+        byte[] data = new byte[10_500];
+        new Random(42).nextBytes(data);
+
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        try (WriteBehindOutputStream out = new WriteBehindOutputStream(new FSDataOutputStream(target, null), 1000, 2, pool)) {
+            out.write(data);
+        }
+        assertEquals(target.toByteArray(), data);
+        assertEquals(pool.getAllocatedBytes(), 3000);
+
+        // the buffers of the closed stream are free for the next one
+        for (int i = 0; i < 10; i++) {
+            assertNotNull(pool.tryAcquire(1000));
+        }
+        assertNull(pool.tryAcquire(1000));
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.util;
+
+import com.facebook.presto.hadoop.TextLineLengthLimitExceededException;
+import org.apache.hadoop.io.Text;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link LineReader} reading lines with the word at a time newline scan against
+ * a copy of the byte at a time CR/LF state machine it replaced, end to end over the same input.
+ * The JMH dependencies are only on the test classpath with the {@code benchmarks} profile:
+ * build with {@code mvn test-compile -Pbenchmarks}, and run {@link #main} with the test classpath.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(2)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class BenchmarkLineReader
+{
+    private static final int DATA_SIZE = 4 * 1024 * 1024;
+
+    @Param({"16", "128", "1024"})
+    private int lineLength;
+
+    @Param({"LF", "CRLF"})
+    private String lineTerminator;
+
+    private byte[] data;
+
+    @Setup
+    public void setup()
+    {
+        byte[] terminator = lineTerminator.equals("CRLF") ? new byte[] {'\r', '\n'} : new byte[] {'\n'};
+        Random random = new Random(42);
+        data = new byte[DATA_SIZE];
+        int position = 0;
+        while (position < data.length) {
+            for (int i = 0; i < lineLength - terminator.length && position < data.length; i++) {
+                data[position++] = (byte) ('a' + random.nextInt(26));
+            }
+            for (int i = 0; i < terminator.length && position < data.length; i++) {
+                data[position++] = terminator[i];
+            }
+        }
+    }
+
+    @Benchmark
+    public int readLines()
+            throws IOException
+    {
+        LineReader reader = new LineReader(new ByteArrayInputStream(data));
+        Text line = new Text();
+        int lines = 0;
+        while (reader.readLine(line) > 0) {
+            lines++;
+        }
+        return lines;
+    }
+
+    @Benchmark
+    public int readLinesLegacy()
+            throws IOException
+    {
+        LegacyLineReader reader = new LegacyLineReader(new ByteArrayInputStream(data));
+        Text line = new Text();
+        int lines = 0;
+        while (reader.readLine(line) > 0) {
+            lines++;
+        }
+        return lines;
+    }
+
+    public static void main(String[] args)
+            throws Exception
+    {
+        Options options = new OptionsBuilder()
+                .include(".*" + BenchmarkLineReader.class.getSimpleName() + ".*")
+                .build();
+        new Runner(options).run();
+    }
+
+    /**
+     * The default line reading of {@link LineReader} before the word at a time scan, unchanged.
+     */
+    private static class LegacyLineReader
+    {
+        private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+        private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+        private static final byte CR = '\r';
+        private static final byte LF = '\n';
+
+        private final InputStream in;
+        private final byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
+        private int bufferLength;
+        private int bufferPosn;
+
+        public LegacyLineReader(InputStream in)
+        {
+            this.in = in;
+        }
+
+        public int readLine(Text str)
+                throws IOException
+        {
+            return readDefaultLine(str, MAX_ARRAY_SIZE, MAX_ARRAY_SIZE);
+        }
+
+        private int readDefaultLine(Text str, int maxLineLength, int maxBytesToConsume)
+                throws IOException
+        {
+            str.clear();
+            int txtLength = 0; //tracks str.getLength(), as an optimization
+            int newlineLength = 0; //length of terminating newline
+            boolean prevCharCR = false; //true of prev char was CR
+            long bytesConsumed = 0;
+            do {
+                int startPosn = bufferPosn; //starting from where we left off the last time
+                if (bufferPosn >= bufferLength) {
+                    startPosn = 0;
+                    bufferPosn = 0;
+                    if (prevCharCR) {
+                        ++bytesConsumed; //account for CR from previous read
+                    }
+                    bufferLength = in.read(buffer);
+                    if (bufferLength <= 0) {
+                        break; // EOF
+                    }
+                }
+                for (; bufferPosn < bufferLength; ++bufferPosn) { //search for newline
+                    if (buffer[bufferPosn] == LF) {
+                        newlineLength = (prevCharCR) ? 2 : 1;
+                        ++bufferPosn; // at next invocation proceed from following byte
+                        break;
+                    }
+                    if (prevCharCR) { //CR + notLF, we are at notLF
+                        newlineLength = 1;
+                        break;
+                    }
+                    prevCharCR = (buffer[bufferPosn] == CR);
+                }
+                int readLength = bufferPosn - startPosn;
+                if (prevCharCR && newlineLength == 0) {
+                    --readLength; //CR at the end of the buffer
+                }
+                bytesConsumed += readLength;
+                int appendLength = readLength - newlineLength;
+                if (appendLength > maxLineLength - txtLength) {
+                    appendLength = maxLineLength - txtLength;
+                    if (appendLength > 0) {
+                        throw new TextLineLengthLimitExceededException("Too many bytes before newline: " + maxLineLength);
+                    }
+                }
+                if (appendLength > 0) {
+                    int newTxtLength = txtLength + appendLength;
+                    if (str.getBytes().length < newTxtLength && Math.max(newTxtLength, txtLength << 1) > MAX_ARRAY_SIZE) {
+                        throw new TextLineLengthLimitExceededException("Too many bytes before newline: " + newTxtLength);
+                    }
+                    str.append(buffer, startPosn, appendLength);
+                    txtLength = newTxtLength;
+                }
+            }
+            while (newlineLength == 0 && bytesConsumed < maxBytesToConsume);
+
+            if (newlineLength == 0 && bytesConsumed >= maxBytesToConsume) {
+                throw new TextLineLengthLimitExceededException("Too many bytes before newline: " + bytesConsumed);
+            }
+            return (int) bytesConsumed;
+        }
+    }
+}